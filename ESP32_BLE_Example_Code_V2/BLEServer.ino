@@ -60,6 +60,113 @@ static boolean connected = false;
 // indiciates whether or not a operation is currently in progress
 static boolean operationInProgress = false;
 
+/********************************************************************
+                        Binary Wire Format
+ ********************************************************************/
+// mirrors WireFormat.java in the companion app:
+//   frame  := version:u8 flags:u8 type:u8 bodyLength:varint body [crc16:u16 big endian]
+//   body   := recordCount:varint record*
+//   record := fieldCount:varint (length:varint bytes)*
+// the text format stays the default, requestBinaryFormat() switches the connection over
+#define WIRE_VERSION 1
+#define WIRE_FLAG_CRC 0x01
+#define WIRE_TYPE_TEXT 0
+#define WIRE_TYPE_NOTIFICATION_LIST 1
+#define WIRE_TYPE_CALENDAR 2
+#define WIRE_TYPE_NOW_PLAYING 3
+#define WIRE_TYPE_NOTIFICATION_DELTA 4
+#define WIRE_TYPE_CALENDAR_PAGE 5
+
+// called once per field while a frame is parsed, data is not null terminated
+typedef void (*WireFieldCallback)(uint8_t type, uint32_t record, uint32_t field, const char *data, uint32_t length);
+
+static boolean binaryFormat = false;
+// raw bytes of the current response, String would stop at the first zero byte of a binary frame
+static std::string rawDataField;
+
+// CRC-16/CCITT-FALSE, same as WireFormat.crc16
+static uint16_t wireCrc16(const uint8_t *data, size_t length)
+{
+  uint16_t crc = 0xFFFF;
+  for (size_t i = 0; i < length; i++)
+  {
+    crc ^= (uint16_t)data[i] << 8;
+    for (int bit = 0; bit < 8; bit++)
+      crc = (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+  }
+  return crc;
+}
+
+static boolean wireReadVarint(const uint8_t *data, size_t end, size_t *pos, uint32_t *value)
+{
+  uint32_t result = 0;
+  for (int shift = 0; *pos < end && shift < 35; shift += 7)
+  {
+    uint8_t b = data[(*pos)++];
+    result |= (uint32_t)(b & 0x7F) << shift;
+    if (!(b & 0x80))
+    {
+      *value = result;
+      return true;
+    }
+  }
+  return false;
+}
+
+// total length of the frame at the start of buffer, or -1 if the header has not fully arrived
+long wireFrameLength(const std::string &buffer)
+{
+  const uint8_t *data = (const uint8_t *)buffer.data();
+  size_t pos = 3;
+  uint32_t bodyLength;
+  if (buffer.length() < 4 || !wireReadVarint(data, buffer.length(), &pos, &bodyLength))
+    return -1;
+  return pos + bodyLength + ((data[1] & WIRE_FLAG_CRC) ? 2 : 0);
+}
+
+// walks every field of a complete frame, returns false if the frame is malformed
+boolean parseWireFrame(const std::string &frame, WireFieldCallback callback)
+{
+  const uint8_t *data = (const uint8_t *)frame.data();
+  long total = wireFrameLength(frame);
+  if (total < 0 || (size_t)total > frame.length() || data[0] != WIRE_VERSION)
+    return false;
+
+  size_t end = total;
+  if (data[1] & WIRE_FLAG_CRC)
+  {
+    end -= 2;
+    uint16_t expected = ((uint16_t)data[end] << 8) | data[end + 1];
+    if (wireCrc16(data, end) != expected)
+    {
+      printDebug("Wire frame CRC mismatch");
+      return false;
+    }
+  }
+
+  uint8_t type = data[2];
+  size_t pos = 3;
+  uint32_t bodyLength, recordCount;
+  wireReadVarint(data, end, &pos, &bodyLength);
+  if (!wireReadVarint(data, end, &pos, &recordCount))
+    return false;
+  for (uint32_t r = 0; r < recordCount; r++)
+  {
+    uint32_t fieldCount;
+    if (!wireReadVarint(data, end, &pos, &fieldCount))
+      return false;
+    for (uint32_t f = 0; f < fieldCount; f++)
+    {
+      uint32_t length;
+      if (!wireReadVarint(data, end, &pos, &length) || length > end - pos)
+        return false;
+      callback(type, r, f, (const char *)data + pos, length);
+      pos += length;
+    }
+  }
+  return true;
+}
+
 void addData(String data)
 {
   printDebug("Received:" + data);
@@ -70,6 +177,284 @@ void addData(String data)
   }
 }
 
+/********************************************************************
+                        Payload Compression
+ ********************************************************************/
+// mirrors PayloadCompressor.java in the companion app:
+//   payload := 0xFF originalLength:varint group*
+//   group   := flags:u8 token{1..8}   flag bit i (LSB first) set = literal byte, clear = match
+//   match   := offsetLow:u8 (offsetHigh:u4 | lengthMinus3:u4)
+// 0xFF never starts a text response or a binary frame, so compressed responses are recognized by
+// their first byte and expanded before anything else looks at them
+#define COMPRESSION_MARKER 0xFF
+#define COMPRESSION_MIN_MATCH 3
+// the largest response the watch accepts once expanded, the length is read off the air and
+// checked against this before anything is allocated for it
+#define MAX_RESPONSE_SIZE 32768
+
+static boolean compression = false;
+
+// expands a compressed payload in place, returns false (leaving the payload alone) if it is malformed
+boolean decompressPayload(std::string &payload)
+{
+  const uint8_t *in = (const uint8_t *)payload.data();
+  size_t end = payload.length();
+  size_t p = 1;
+  uint32_t length;
+  if (end == 0 || in[0] != COMPRESSION_MARKER || !wireReadVarint(in, end, &p, &length))
+    return false;
+  if (length > MAX_RESPONSE_SIZE)
+  {
+    printDebug("Compressed response claims " + String(length) + " bytes, more than MAX_RESPONSE_SIZE");
+    return false;
+  }
+
+  std::string out(length, '\0');
+  size_t o = 0;
+  while (o < length)
+  {
+    if (p >= end)
+      return false;
+    uint8_t flags = in[p++];
+    for (int bit = 0; bit < 8 && o < length; bit++)
+    {
+      if (flags & (1 << bit))
+      {
+        if (p >= end)
+          return false;
+        out[o++] = in[p++];
+      }
+      else
+      {
+        if (p + 2 > end)
+          return false;
+        uint8_t low = in[p++];
+        uint8_t high = in[p++];
+        size_t offset = ((size_t)(high >> 4) << 8) | low;
+        size_t matchLength = (high & 0x0F) + COMPRESSION_MIN_MATCH;
+        if (offset == 0 || offset > o || o + matchLength > length)
+          return false;
+        // byte by byte on purpose, overlapping matches repeat the run
+        for (size_t k = 0; k < matchLength; k++, o++)
+          out[o] = out[o - offset];
+      }
+    }
+  }
+  payload.swap(out);
+  return true;
+}
+
+/********************************************************************
+                        Multiplexed Requests
+ ********************************************************************/
+// mirrors ResponseMultiplexer.java in the companion app. Once "/multiplex on" was accepted a
+// command sent as "#<id> <command>" is answered by writes of
+//   MUX_MARKER:u8 id:u8 flags:u8 piece
+// and the responses to several ids may be interleaved. The piece flagged MUX_FLAG_LAST ends a
+// response, no read is needed to complete it. From then on every response comes framed like
+// that, the reply to a command sent without an id with id 0, so a piece of a response is never
+// mistaken for a header. The marker never starts text, a binary frame or a compressed response.
+#define MUX_MARKER 0xFE
+#define MUX_HEADER_SIZE 3
+#define MUX_FLAG_LAST 0x01
+#define MAX_PENDING_REQUESTS 4
+#define REQUEST_TIMEOUT_MS 5000
+
+#define RESPONSE_PENDING 0
+#define RESPONSE_READY 1
+#define RESPONSE_FAILED -1
+
+struct PendingRequest
+{
+  volatile uint8_t id; // 0 while the slot is free
+  volatile boolean complete;
+  unsigned long sentAt;
+  std::string data;
+};
+
+// the slots are filled by the BLE task (onWrite) and taken or timed out by the loop task, every
+// access holds requestsLock. A mutex rather than a portMUX critical section because appending
+// to and clearing the responses allocates
+static PendingRequest pendingRequests[MAX_PENDING_REQUESTS];
+static SemaphoreHandle_t requestsLock; // created by initBLE
+static uint8_t lastRequestId = 0;
+static boolean multiplexing = false;
+
+static PendingRequest *findRequest(uint8_t id)
+{
+  for (int i = 0; i < MAX_PENDING_REQUESTS; i++)
+    if (id != 0 && pendingRequests[i].id == id)
+      return &pendingRequests[i];
+  return NULL;
+}
+
+static void releaseRequest(PendingRequest *request)
+{
+  request->data.clear();
+  request->complete = false;
+  request->id = 0;
+}
+
+static boolean isMuxFrame(const std::string &value)
+{
+  return value.length() >= MUX_HEADER_SIZE && (uint8_t)value[0] == MUX_MARKER;
+}
+
+// takes a framed write on the command characteristic, returns false for id 0 (a reply to a
+// command sent without an id). A piece for a request that timed out is dropped
+boolean addResponseChunk(const std::string &value)
+{
+  uint8_t id = (uint8_t)value[1];
+  uint8_t flags = (uint8_t)value[2];
+  if (id == 0)
+    return false;
+  int length = -1;
+  xSemaphoreTake(requestsLock, portMAX_DELAY);
+  PendingRequest *request = findRequest(id);
+  if (request == NULL || request->complete)
+  {
+    xSemaphoreGive(requestsLock);
+    return true;
+  }
+  request->data.append(value, MUX_HEADER_SIZE, std::string::npos);
+  if (flags & MUX_FLAG_LAST)
+  {
+    if (!request->data.empty() && (uint8_t)request->data[0] == COMPRESSION_MARKER && !decompressPayload(request->data))
+      releaseRequest(request);
+    else
+    {
+      request->complete = true;
+      length = request->data.length();
+    }
+  }
+  xSemaphoreGive(requestsLock);
+
+  if (flags & MUX_FLAG_LAST)
+  {
+    if (length < 0)
+      printDebug("Malformed compressed response to #" + String(id));
+    else
+      printDebug("Response to #" + String(id) + " complete, " + String(length) + " bytes");
+  }
+  return true;
+}
+
+// sends command without waiting for the answer, returns its request id or 0 if it could not be
+// sent (not connected, multiplexing not negotiated or MAX_PENDING_REQUESTS already in flight)
+uint8_t sendRequest(String command)
+{
+  if (!connected || !multiplexing)
+    return 0;
+  PendingRequest *slot = NULL;
+  xSemaphoreTake(requestsLock, portMAX_DELAY);
+  for (int i = 0; i < MAX_PENDING_REQUESTS && slot == NULL; i++)
+  {
+    PendingRequest *request = &pendingRequests[i];
+    // a request the phone never finished answering is given up on
+    if (request->id != 0 && !request->complete && millis() - request->sentAt > REQUEST_TIMEOUT_MS)
+      releaseRequest(request);
+    if (request->id == 0)
+      slot = request;
+  }
+  if (slot == NULL)
+  {
+    xSemaphoreGive(requestsLock);
+    return 0;
+  }
+  do
+    lastRequestId++;
+  while (lastRequestId == 0 || findRequest(lastRequestId) != NULL);
+
+  uint8_t id = lastRequestId;
+  slot->data.clear();
+  slot->complete = false;
+  slot->sentAt = millis();
+  slot->id = id;
+  xSemaphoreGive(requestsLock);
+
+  // the slot is claimed before the command goes out, an answer may arrive before notify() returns
+  String request = "#" + String(id) + " " + command;
+  commandCharacteristic->setValue(request.c_str());
+  commandCharacteristic->notify();
+  printDebug("Sent BLE Request: " + request);
+  return id;
+}
+
+// RESPONSE_READY moves the response to *data and frees the request
+static int takeResponse(uint8_t id, std::string *data)
+{
+  int result = RESPONSE_PENDING;
+  xSemaphoreTake(requestsLock, portMAX_DELAY);
+  PendingRequest *request = findRequest(id);
+  if (request == NULL)
+    result = RESPONSE_FAILED;
+  else if (request->complete)
+  {
+    data->swap(request->data);
+    releaseRequest(request);
+    result = RESPONSE_READY;
+  }
+  else if (!connected || millis() - request->sentAt > REQUEST_TIMEOUT_MS)
+  {
+    releaseRequest(request);
+    result = RESPONSE_FAILED;
+  }
+  xSemaphoreGive(requestsLock);
+  return result;
+}
+
+// RESPONSE_PENDING until the answer to id has arrived, then RESPONSE_READY with the text in
+// *returnString, or RESPONSE_FAILED if it timed out or the link went down
+int pollResponse(uint8_t id, String *returnString)
+{
+  std::string data;
+  int result = takeResponse(id, &data);
+  if (result == RESPONSE_READY)
+    *returnString = String(data.c_str());
+  return result;
+}
+
+// same for a binary frame, walked by callback once it has arrived
+int pollResponse(uint8_t id, WireFieldCallback callback)
+{
+  std::string data;
+  int result = takeResponse(id, &data);
+  if (result == RESPONSE_READY && !parseWireFrame(data, callback))
+    return RESPONSE_FAILED;
+  return result;
+}
+
+static boolean awaitResponse(uint8_t id, std::string *data)
+{
+  int result;
+  while ((result = takeResponse(id, data)) == RESPONSE_PENDING)
+    delay(25);
+  return result == RESPONSE_READY;
+}
+
+// sends command as a request and blocks until its non empty answer is in *data. Every caller
+// has its own buffer, rawDataField belongs to the classic response
+static boolean awaitRequest(String command, std::string *data)
+{
+  uint8_t id = sendRequest(command);
+  return id != 0 && awaitResponse(id, data) && !data->empty();
+}
+
+// asks the phone to tag its responses with request ids for the rest of the connection, older
+// companion apps do not know the command and only one command can be in flight at a time
+boolean requestMultiplexing()
+{
+  String reply;
+  multiplexing = sendBLE("/multiplex on", &reply, true) && reply == "on";
+  return multiplexing;
+}
+
+// false again after a disconnect, the next connection has to ask for it again
+boolean isMultiplexing()
+{
+  return multiplexing;
+}
+
 class cb : public BLEServerCallbacks
 {
   void onConnect(BLEServer *pServer)
@@ -80,45 +465,121 @@ class cb : public BLEServerCallbacks
   void onDisconnect(BLEServer *pServer)
   {
     connected = false;
+    binaryFormat = false;
+    compression = false;
+    multiplexing = false;
+    xSemaphoreTake(requestsLock, portMAX_DELAY);
+    for (int i = 0; i < MAX_PENDING_REQUESTS; i++)
+      releaseRequest(&pendingRequests[i]);
+    xSemaphoreGive(requestsLock);
     printDebug("BLE Device Disconnected");
   }
 };
 
+// the classic response is complete, on the read that follows it or on its last framed piece
+static void completeResponse()
+{
+  if (!rawDataField.empty() && (uint8_t)rawDataField[0] == COMPRESSION_MARKER)
+  {
+    size_t compressedLength = rawDataField.length();
+    if (decompressPayload(rawDataField))
+    {
+      printDebug("Decompressed " + String(compressedLength) + " -> " + String(rawDataField.length()) + " bytes");
+      addData(String(rawDataField.c_str()));
+    }
+    else
+      printDebug("Malformed compressed response");
+  }
+  operationInProgress = false;
+  printDebug("Complete Received String:\n" + currentDataField);
+}
+
 class ccb : public BLECharacteristicCallbacks
 {
   void onWrite(BLECharacteristic *pCharacteristic)
   {
     std::string rxValue = pCharacteristic->getValue();
-    addData(String(pCharacteristic->getValue().c_str()));
+    boolean last = false;
+    if (multiplexing && isMuxFrame(rxValue))
+    {
+      if (addResponseChunk(rxValue))
+        return;
+      last = (uint8_t)rxValue[2] & MUX_FLAG_LAST;
+      rxValue.erase(0, MUX_HEADER_SIZE);
+    }
+    rawDataField += rxValue;
+    // compressed responses are only handed over once complete, see completeResponse
+    if (!rawDataField.empty() && (uint8_t)rawDataField[0] != COMPRESSION_MARKER)
+      addData(String(rxValue.c_str()));
+    if (last)
+      completeResponse();
   }
   void onRead(BLECharacteristic *pCharacteristic)
   {
     //      Serial.println("Characteristic Read");
-    operationInProgress = false;
-    printDebug("Complete Received String:\n" + currentDataField);
+    completeResponse();
   }
 };
 
+// notification deltas arrive as "type;key;data\n" (or as a WIRE_TYPE_NOTIFICATION_DELTA frame in
+// binary mode) and may span several writes, the record is handed to onNotificationEvent once complete
+static String notificationDelta;
+static std::string notificationDeltaFrame;
+static String deltaFields[3];
+
+static void collectDeltaField(uint8_t type, uint32_t record, uint32_t field, const char *data, uint32_t length)
+{
+  if (field < 3)
+  {
+    deltaFields[field] = "";
+    deltaFields[field].concat(data, length);
+  }
+}
+
 class notification_update_callback : public BLECharacteristicCallbacks
 {
   void onWrite(BLECharacteristic *pCharacteristic)
   {
-    printDebug("Notification " + String(pCharacteristic->getValue().c_str()));
-    onNotificationEvent(String(pCharacteristic->getValue().c_str()));
+    if (binaryFormat)
+    {
+      std::string rxValue = pCharacteristic->getValue();
+      notificationDeltaFrame += rxValue;
+      long length;
+      while ((length = wireFrameLength(notificationDeltaFrame)) > 0 && (size_t)length <= notificationDeltaFrame.length())
+      {
+        if (parseWireFrame(notificationDeltaFrame.substr(0, length), collectDeltaField))
+          onNotificationEvent(deltaFields[0] + ";" + deltaFields[1] + ";" + deltaFields[2]);
+        notificationDeltaFrame.erase(0, length);
+      }
+      return;
+    }
+
+    notificationDelta += String(pCharacteristic->getValue().c_str());
+    int end;
+    while ((end = notificationDelta.indexOf('\n')) >= 0)
+    {
+      String record = notificationDelta.substring(0, end);
+      notificationDelta.remove(0, end + 1);
+      printDebug("Notification " + record);
+      onNotificationEvent(record);
+    }
   }
 };
 
 void initBLE()
 {
+  requestsLock = xSemaphoreCreateMutex();
   BLEDevice::init("ESP32 Smartwatch");
   pServer = BLEDevice::createServer();
   pService = pServer->createService(SERVICE_UUID);
 
   // define the characteristics and how they can be used
+  // PROPERTY_WRITE_NR lets the phone stream large responses without waiting for a write response per chunk
   commandCharacteristic = pService->createCharacteristic(
       COMMAND_UUID,
       BLECharacteristic::PROPERTY_READ |
           BLECharacteristic::PROPERTY_WRITE |
+          BLECharacteristic::PROPERTY_WRITE_NR |
           BLECharacteristic::PROPERTY_NOTIFY);
 
   notificationUpdateCharacteristic = pService->createCharacteristic(
@@ -153,9 +614,19 @@ void startBLEAdvertising()
 }
 
 // sends BLE command and returns data to a specific string. This function can be blocking (if you need it to perform a specific action) or non-blocking
-// if you don't mind the data being used as its received.
+// if you don't mind the data being used as its received. Once multiplexing is on it always blocks, other requests
+// can still be in flight meanwhile.
 boolean sendBLE(String command, String *returnString, boolean blocking)
 {
+  if (multiplexing)
+  {
+    std::string data;
+    if (!awaitRequest(command, &data))
+      return false;
+    *returnString = String(data.c_str());
+    return true;
+  }
+
   if (connected && !operationInProgress)
   {
     blockingCommandInProgress = blocking;
@@ -169,6 +640,7 @@ boolean sendBLE(String command, String *returnString, boolean blocking)
     {
 
       currentDataField = "";
+      rawDataField.clear();
 
       unsigned long startTime = millis();
       while (operationInProgress && (startTime + 2000 > millis()))
@@ -188,6 +660,7 @@ boolean sendBLE(String command, String *returnString, boolean blocking)
     else
     {
       currentDataField = "";
+      rawDataField.clear();
       bleReturnString = returnString;
       *returnString = currentDataField;
 
@@ -226,3 +699,38 @@ boolean sendBLE(String command)
   }
   return false;
 }
+
+// sends a blocking command and walks the binary frame it returns, only valid once
+// requestBinaryFormat() succeeded
+boolean sendBLE(String command, WireFieldCallback callback)
+{
+  if (!binaryFormat)
+    return false;
+  if (multiplexing)
+  {
+    std::string data;
+    return awaitRequest(command, &data) && parseWireFrame(data, callback);
+  }
+  String ignored;
+  if (!sendBLE(command, &ignored, true))
+    return false;
+  return parseWireFrame(rawDataField, callback);
+}
+
+// asks the phone to answer with binary frames for the rest of the connection, older
+// companion apps do not know the command and the text format stays in use
+boolean requestBinaryFormat()
+{
+  String reply;
+  binaryFormat = sendBLE("/format binary", &reply, true) && reply == "binary";
+  return binaryFormat;
+}
+
+// asks the phone to compress large responses for the rest of the connection, older companion
+// apps do not know the command and keep sending them uncompressed
+boolean requestCompression()
+{
+  String reply;
+  compression = sendBLE("/compress lz", &reply, true) && reply == "lz";
+  return compression;
+}
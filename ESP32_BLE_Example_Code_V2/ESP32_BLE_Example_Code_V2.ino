@@ -24,10 +24,37 @@ void initBLE();
 void startBLEAdvertising();
 boolean sendBLE(String command, String *returnString, boolean blocking);
 boolean sendBLE(String command);
+typedef void (*WireFieldCallback)(uint8_t type, uint32_t record, uint32_t field, const char *data, uint32_t length);
+boolean sendBLE(String command, WireFieldCallback callback);
+boolean requestBinaryFormat();
+boolean requestCompression();
+boolean requestMultiplexing();
+boolean isMultiplexing();
+uint8_t sendRequest(String command);
+int pollResponse(uint8_t id, String *returnString);
+int pollResponse(uint8_t id, WireFieldCallback callback);
+// results of pollResponse, BLEServer.ino is appended after this file so they are repeated here
+#define RESPONSE_PENDING 0
+#define RESPONSE_READY 1
+#define RESPONSE_FAILED -1
 
 void onNotificationEvent(String event){
-  //event will have value 'posted' or 'removed' 
-  Serial.printf("Notification Event '%s'\n", event);
+  //event has the format "type;key;data" where type is 'add', 'update' or 'remove'
+  //data uses the same "appName,Title;ExtraText;..." format as /notifications and is empty for 'remove'
+  int typeEnd = event.indexOf(';');
+  int keyEnd = event.indexOf(';', typeEnd + 1);
+  if (typeEnd < 0 || keyEnd < 0)
+    return;
+  String type = event.substring(0, typeEnd);
+  String key = event.substring(typeEnd + 1, keyEnd);
+  //calendar edits share the channel as 'event_add', 'event_update' and 'event_remove', keyed by
+  //"eventId:begin" with the data in the /calendar record format
+  if (type.startsWith("event_"))
+  {
+    Serial.printf("Calendar %s '%s': %s\n", type.substring(6).c_str(), key.c_str(), event.substring(keyEnd + 1).c_str());
+    return;
+  }
+  Serial.printf("Notification %s '%s': %s\n", type.c_str(), key.c_str(), event.substring(keyEnd + 1).c_str());
 }
 
 
@@ -43,6 +70,9 @@ void loop()
   // available commands
   //   /notifications - gets current android notifications as a string format "appName,Title;ExtraText,ExtraInfoText,ExtraSubText,ExtraTitle;Description;"
   //   /calendar - returns a string of calender events for the next 24 hours in format "title;description;startDate;startTime;endTime;eventLocation;"
+  //   /calendarPage <page> [days] - pages through the events of the next [days] days (default 7), 8 events per page.
+  //                  the first line is "page;pageCount;eventCount;" followed by the events in the /calendar format with
+  //                  startDate filled in as yyyy-MM-dd. Start with page 0 and keep asking until page + 1 == pageCount
   //   /time - returns a string representing the time
   //   /isPlaying - returns "true" or "false" indicating whether spotify is playing on the android device
   //   /currentSong - returns the current song name and artist playing on spotify as one string
@@ -50,6 +80,13 @@ void loop()
   //   /pause - hits the media pause button on the android device
   //   /nextSong - hits the media next song button on the android device
   //   /lastSong - hits the media previous song button on the android device
+  //   /nowPlaying - binary only, one record with the "1"/"0" play state and the current song
+  //   /format binary - switches the responses for this connection to the binary frames parsed
+  //                    by parseWireFrame() in BLEServer.ino, "/format text" switches back
+  //   /compress lz - large responses for this connection arrive compressed and are expanded by
+  //                  decompressPayload() in BLEServer.ino before sendBLE returns, "/compress off" stops it
+  //   /multiplex on - commands sent with sendRequest() carry a request id and several can be in flight at
+  //                   once, their answers are picked up with pollResponse(). Use requestMultiplexing()
 
   String data = "";
 
@@ -73,5 +110,37 @@ void loop()
   {
     Serial.println(data);
   }
+
+  /* With requestMultiplexing() the phone answers several commands at the same time, a short
+     answer such as /currentSong does not have to wait for a long /notifications list.
+     sendRequest returns 0 if the request could not be sent. Multiplexing ends with the
+     connection, so it is asked for again after every reconnect. */
+  if (isMultiplexing() || requestMultiplexing())
+  {
+    const char *commands[] = {"/currentSong", "/calendar", "/notifications"};
+    uint8_t ids[3];
+    for (int i = 0; i < 3; i++)
+      ids[i] = sendRequest(commands[i]);
+
+    int remaining = 3;
+    while (remaining > 0)
+    {
+      for (int i = 0; i < 3; i++)
+      {
+        if (ids[i] == 0)
+          continue;
+        int result = pollResponse(ids[i], &data);
+        if (result == RESPONSE_PENDING)
+          continue;
+        if (result == RESPONSE_READY)
+          Serial.printf("%s: %s\n", commands[i], data.c_str());
+        ids[i] = 0;
+      }
+      remaining = 0;
+      for (int i = 0; i < 3; i++)
+        remaining += ids[i] != 0;
+      delay(25);
+    }
+  }
   delay(5000);
 }
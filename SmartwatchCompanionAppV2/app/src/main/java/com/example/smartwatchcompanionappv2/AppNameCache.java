@@ -0,0 +1,60 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+//bounded package name -> app label cache, looking the label up is a binder call to the
+//PackageManager and happens for every notification in every list
+//entries are dropped when the package is installed, changed, replaced or removed
+public class AppNameCache {
+    private static final String TAG = "AppNameCache";
+    public static final int MAX_ENTRIES = 64;
+
+    private static final LruCache<String, String> labels = new LruCache<>(MAX_ENTRIES);
+
+    public static String get(String packageName) {
+        return labels.get(packageName);
+    }
+
+    public static void put(String packageName, String label) {
+        labels.put(packageName, label);
+    }
+
+    public static void invalidate(String packageName) {
+        labels.remove(packageName);
+    }
+
+    public static void clear() {
+        labels.evictAll();
+    }
+
+    //keeps the cache in sync with package changes while registered
+    public static class PackageChangeReceiver extends BroadcastReceiver {
+        public static IntentFilter createFilter() {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addDataScheme("package");
+            return filter;
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName == null) {
+                clear();
+            } else {
+                Log.d(TAG, intent.getAction() + ", dropping cached label for " + packageName);
+                invalidate(packageName);
+            }
+        }
+    }
+}
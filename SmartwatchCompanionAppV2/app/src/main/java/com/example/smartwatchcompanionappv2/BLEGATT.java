@@ -10,22 +10,143 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.content.ContextCompat;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 public class BLEGATT extends BluetoothGattCallback {
     private static final String TAG = "BLEGATT";
+    // default ATT MTU before negotiation, and the largest one we ask for
+    public static final int DEFAULT_MTU = 23;
+    public static final int REQUESTED_MTU = 517;
+    // how long the link stays in BULK_SYNC after the last sync traffic before dropping to IDLE
+    public static final long BULK_QUIET_PERIOD_MS = 5000;
     private final BluetoothAdapter bluetoothAdapter;
     private BluetoothGatt bluetoothGatt;
     private final Context context;
+    // every read/write/descriptor operation goes through this so none are dropped by the stack
+    private final GattOperationQueue operationQueue;
+    // the resolved characteristics and MTU of the current connection, as seen by the sync pipeline
+    private final GattTransport transport;
+    // format/compression negotiation, chunking and streaming of everything we send to the watch
+    private final WatchLink link;
+    private final Handler linkHandler = new Handler(BleWorker.get().getLooper());
+    private final Runnable dropToIdle = this::dropToIdleIfQuiet;
+    private LinkProfile linkProfile = null;
+    private volatile long lastSyncActivity = 0;
+    // serves "/calendar" from memory, calendar edits are pushed as event deltas
+    private final CalendarCache calendarCache;
+    // serves "/calendarPage", the multi-day window the watch pulls a page at a time
+    private final CalendarPager calendarPager;
+    // brings the link back when the watch drops off without the user asking for it
+    private final ReconnectEngine reconnectEngine;
+    private volatile boolean userDisconnect = false;
+    // resolved characteristics per watch, lets a reconnect on the same client skip discovery
+    private final GattCache gattCache = new GattCache();
+    // routes values from the watch by characteristic, also the list of characteristics we expect it to have
+    private final CharacteristicDispatcher dispatcher = new CharacteristicDispatcher();
+
+    // collects the notification list broadcast by NLService between its empty start/end markers
+    private final StringBuilder notificationList = new StringBuilder();
+    private WireFormat.Encoder notificationFrame;
+    private boolean collectingNotifications = false;
+    // request ids of the /notifications commands the next list answers, all on the worker
+    private final ArrayList<Integer> notificationRequests = new ArrayList<>();
+    private final BroadcastReceiver notificationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            //the list is collected and sent on the worker, broadcasts are delivered in order so the
+            //start/end markers stay in place as long as none of them is dropped
+            BleWorker.get().postRequired("notificationBroadcast", () -> handleNotificationBroadcast(intent));
+        }
+    };
+
+    // logging and link profile hooks for WatchLink
+    private final WatchLink.Listener linkListener = new WatchLink.Listener() {
+        @Override
+        public void onSyncActivity() {
+            BLEGATT.this.onSyncActivity();
+        }
+
+        @Override
+        public void onResponseSent(int payloadBytes, int sentBytes, int chunks, boolean streamed, long elapsedMs, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Trace.record(Trace.Event.RESPONSE_FAILED, sentBytes, status);
+                Log.w(TAG, "Response of " + sentBytes + " bytes failed with status " + status);
+                return;
+            }
+            Trace.record(Trace.Event.RESPONSE_SENT, sentBytes, chunks, elapsedMs);
+        }
+
+        @Override
+        public void onDropped(String what) {
+            Log.w(TAG, "Characteristic not available, dropping " + what);
+        }
+    };
+
+    private void handleNotificationBroadcast(Intent intent) {
+        String delta = intent.getStringExtra("notification_delta");
+        if (delta != null) {
+            link.sendNotificationDelta(delta, intent.getStringExtra("notification_key"),
+                    intent.getStringExtra("notification_data"), intent.getLongExtra("notification_received_at", -1));
+            return;
+        }
+        String[] fields = intent.getStringArrayExtra("notification_fields");
+        if (fields != null) {
+            if (collectingNotifications && notificationFrame != null) {
+                notificationFrame.record(fields);
+            }
+            return;
+        }
+        String event = intent.getStringExtra("notification_event");
+        if (event == null) {
+            return;
+        }
+        if (event.isEmpty()) {
+            if (collectingNotifications) {
+                collectingNotifications = false;
+                //every request that came in while the list was built gets the same list
+                if (notificationRequests.isEmpty()) {
+                    notificationRequests.add(WatchLink.NO_REQUEST);
+                }
+                byte[] frame = notificationFrame != null ? notificationFrame.finish() : null;
+                String text = notificationList.toString();
+                for (int requestId : notificationRequests) {
+                    if (frame != null) {
+                        link.sendBytes(requestId, frame);
+                    } else {
+                        link.sendMessage(requestId, text);
+                    }
+                }
+                notificationRequests.clear();
+                notificationFrame = null;
+            } else {
+                collectingNotifications = true;
+                notificationList.setLength(0);
+                notificationFrame = link.isBinaryFormat() ? new WireFormat.Encoder(WireFormat.TYPE_NOTIFICATION_LIST, true) : null;
+            }
+        } else if (collectingNotifications) {
+            notificationList.append(event);
+        }
+    }
 
     public BLEGATT(Context context) {
         this.context = context;
+        this.operationQueue = new GattOperationQueue(BleWorker.get().getLooper());
+        this.transport = new GattTransport(operationQueue);
+        this.link = new WatchLink(transport, SystemClock::elapsedRealtime, linkListener);
         BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         if (bluetoothManager != null) {
             this.bluetoothAdapter = bluetoothManager.getAdapter();
@@ -33,10 +154,33 @@ public class BLEGATT extends BluetoothGattCallback {
             this.bluetoothAdapter = null; // Should ideally handle this error case
             Log.e(TAG, "BluetoothManager not available");
         }
+        IntentFilter filter = new IntentFilter(NLService.NOTIFICATION_ACTION);
+        context.registerReceiver(notificationReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        calendarCache = new CalendarCache(context, this::sendCalendarDelta);
+        calendarCache.register();
+        calendarPager = new CalendarPager(context);
+        reconnectEngine = new ReconnectEngine(context, this::connect);
+        dispatcher.register(WatchUuids.COMMAND_UUID, true, this::onCommandValue)
+                .register(WatchUuids.NOTIFICATION_UPDATE_UUID, false, value -> {
+                    // the watch does not send anything on this one yet
+                });
+        transport.setReceiver((uuid, value) -> {
+            if (!dispatcher.dispatch(uuid, value)) {
+                Log.w(TAG, "No handler for characteristic " + uuid);
+            }
+        });
     }
 
     public boolean connect(final String address) {
-        Log.d(TAG, "Attempting to connect to: " + address);
+        userDisconnect = false;
+        reconnectEngine.setAddress(address);
+        return connect(address, false);
+    }
+
+    //autoConnect leaves the connection pending in the controller until the watch is in range,
+    //ReconnectEngine uses it for the bonded watch
+    private boolean connect(final String address, boolean autoConnect) {
+        Log.d(TAG, "Attempting to connect to: " + address + (autoConnect ? " (autoConnect)" : ""));
         if (this.bluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
@@ -53,12 +197,26 @@ public class BLEGATT extends BluetoothGattCallback {
             return false;
         }
         MainActivity.currentDevice = device;
-        bluetoothGatt = device.connectGatt(context, false, this);
+        if (bluetoothGatt != null) {
+            if (autoConnect && address.equals(bluetoothGatt.getDevice().getAddress())) {
+                // reusing the client keeps its service table, and with it the GattCache entry
+                Log.d(TAG, "Reconnecting the existing client.");
+                operationQueue.setGatt(bluetoothGatt);
+                return bluetoothGatt.connect();
+            }
+            // a reconnect attempt replaces the previous client instead of leaking it
+            operationQueue.setGatt(null);
+            bluetoothGatt.close();
+        }
+        bluetoothGatt = device.connectGatt(context, autoConnect, this);
+        operationQueue.setGatt(bluetoothGatt);
         Log.d(TAG, "Trying to create a new connection.");
         return true;
     }
 
     public void disconnect() {
+        userDisconnect = true;
+        reconnectEngine.stop();
         if (bluetoothAdapter == null || bluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or GATT not connected.");
             return;
@@ -71,6 +229,14 @@ public class BLEGATT extends BluetoothGattCallback {
     }
 
     public void close() {
+        reconnectEngine.stop();
+        try {
+            context.unregisterReceiver(notificationReceiver);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Notification receiver was not registered");
+        }
+        calendarCache.unregister();
+        calendarPager.close();
         if (bluetoothGatt == null) {
             return;
         }
@@ -78,53 +244,185 @@ public class BLEGATT extends BluetoothGattCallback {
             Log.e(TAG, "BLUETOOTH_CONNECT permission not granted. Cannot close GATT.");
             return;
         }
+        operationQueue.setGatt(null);
         bluetoothGatt.close();
         bluetoothGatt = null;
     }
 
+    public GattOperationQueue getOperationQueue() {
+        return operationQueue;
+    }
+
+    public int getMtu() {
+        return transport.getMtu();
+    }
+
+    public LinkProfile getLinkProfile() {
+        return linkProfile;
+    }
+
+    //applies the connection priority and preferred PHY of the given profile to the current link
+    public void setLinkProfile(LinkProfile profile) {
+        BluetoothGatt gatt = bluetoothGatt;
+        if (gatt == null || profile == linkProfile) {
+            return;
+        }
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(TAG, "BLUETOOTH_CONNECT permission not granted. Cannot change link profile.");
+            return;
+        }
+        boolean accepted = gatt.requestConnectionPriority(profile.connectionPriority);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            gatt.setPreferredPhy(profile.phyMask, profile.phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+        Log.i(TAG, "Link profile " + linkProfile + " -> " + profile + (accepted ? "" : " (priority request refused)"));
+        linkProfile = profile;
+    }
+
+    //switches to BULK_SYNC for a burst of sync traffic and drops back to IDLE once it goes quiet
+    private void onSyncActivity() {
+        lastSyncActivity = SystemClock.elapsedRealtime();
+        linkHandler.post(() -> {
+            setLinkProfile(LinkProfile.BULK_SYNC);
+            linkHandler.removeCallbacks(dropToIdle);
+            linkHandler.postDelayed(dropToIdle, BULK_QUIET_PERIOD_MS);
+        });
+    }
+
+    //writes keep bumping lastSyncActivity, so a long transfer keeps the link in BULK_SYNC
+    private void dropToIdleIfQuiet() {
+        long quietFor = SystemClock.elapsedRealtime() - lastSyncActivity;
+        if (quietFor < BULK_QUIET_PERIOD_MS) {
+            linkHandler.postDelayed(dropToIdle, BULK_QUIET_PERIOD_MS - quietFor);
+        } else {
+            setLinkProfile(LinkProfile.IDLE);
+        }
+    }
+
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
         if (newState == BluetoothProfile.STATE_CONNECTED) {
             Log.i(TAG, "Connected to GATT server.");
+            reconnectEngine.onConnected();
             if (ContextCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
                 Log.e(TAG, "BLUETOOTH_CONNECT permission not granted. Cannot discover services.");
                 return;
             }
-            Log.i(TAG, "Attempting to start service discovery:" + (bluetoothGatt != null ? bluetoothGatt.discoverServices() : "gatt is null and discoverServices not called"));
+            GattCache.Entry cached = gattCache.get(gatt.getDevice().getAddress(), gatt);
+            if (cached != null) {
+                Log.i(TAG, "GATT table unchanged since the last connection, skipping service discovery");
+                setupCharacteristics(cached.command, cached.notificationUpdate, true);
+            } else {
+                Log.i(TAG, "Attempting to start service discovery");
+                operationQueue.enqueue("discoverServices", 10000, BluetoothGatt::discoverServices);
+            }
             MainActivity.updateStatusText();
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-            Log.i(TAG, "Disconnected from GATT server.");
+            Log.i(TAG, "Disconnected from GATT server with status " + status);
+            if (!userDisconnect) {
+                reconnectEngine.onDisconnected();
+            }
+            operationQueue.clear();
+            transport.reset();
+            link.reset();
+            // the request ids belonged to the old connection
+            BleWorker.get().postRequired("dropNotificationRequests", notificationRequests::clear);
+            // the watch misses every delta until it is back and asks for the list again
+            Intent linkLost = new Intent(NLService.GET_NOTIFICATION_INTENT);
+            linkLost.setPackage(context.getPackageName());
+            linkLost.putExtra("command", NLService.COMMAND_LINK_LOST);
+            context.sendBroadcast(linkLost);
+            calendarPager.close();
+            linkHandler.removeCallbacks(dropToIdle);
+            linkProfile = null;
             MainActivity.updateStatusText();
         }
     }
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        operationQueue.complete("discoverServices", status);
         if (status == BluetoothGatt.GATT_SUCCESS) {
             Log.i(TAG, "onServicesDiscovered received: GATT_SUCCESS");
-            BluetoothGattService service = gatt.getService(UUID.fromString(MainActivity.SERVICE_UUID));
+            BluetoothGattService service = gatt.getService(WatchUuids.SERVICE_UUID);
             if (service != null) {
-                BluetoothGattCharacteristic characteristic = service.getCharacteristic(UUID.fromString(MainActivity.COMMAND_UUID));
+                checkCharacteristics(service);
+                BluetoothGattCharacteristic characteristic = service.getCharacteristic(WatchUuids.COMMAND_UUID);
                 if (characteristic != null) {
                     Log.i(TAG, "Found service and command characteristic");
-                    BluetoothGattCharacteristic notificationChar = service.getCharacteristic(UUID.fromString(MainActivity.CHARACTERISTIC_NOTIFICATION_UPDATE));
-                    if (notificationChar != null) {
-                        setCharacteristicNotification(notificationChar, true);
-                    } else {
-                        Log.w(TAG, "Notification Characteristic " + MainActivity.CHARACTERISTIC_NOTIFICATION_UPDATE + " not found.");
+                    BluetoothGattCharacteristic notificationChar = service.getCharacteristic(WatchUuids.NOTIFICATION_UPDATE_UUID);
+                    if (notificationChar == null) {
+                        Log.w(TAG, "Notification Characteristic " + WatchUuids.NOTIFICATION_UPDATE + " not found.");
                     }
+                    gattCache.put(gatt.getDevice().getAddress(), gatt, characteristic, notificationChar);
+                    setupCharacteristics(characteristic, notificationChar, false);
                 } else {
-                     Log.w(TAG, "Command Characteristic " + MainActivity.COMMAND_UUID + " not found in service " + MainActivity.SERVICE_UUID);
+                     Log.w(TAG, "Command Characteristic " + WatchUuids.COMMAND + " not found in service " + WatchUuids.SERVICE);
                 }
             } else {
-                 Log.w(TAG, "Service " + MainActivity.SERVICE_UUID + " not found");
+                 Log.w(TAG, "Service " + WatchUuids.SERVICE + " not found, the app and firmware UUIDs probably differ");
             }
         } else {
             Log.w(TAG, "onServicesDiscovered received: " + status);
         }
     }
 
+    //reports characteristics the app registered a handler for but the watch does not offer
+    private void checkCharacteristics(BluetoothGattService service) {
+        List<UUID> offered = new ArrayList<>();
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            offered.add(characteristic.getUuid());
+        }
+        List<UUID> missing = dispatcher.missing(offered);
+        if (!missing.isEmpty()) {
+            Log.e(TAG, "Watch is missing characteristics " + missing + ", check the UUIDs in WatchUuids against BLEServer.ino");
+        }
+    }
+
+    //the watch changed its GATT table (service changed indication), the cached references are stale
+    @Override
+    public void onServiceChanged(BluetoothGatt gatt) {
+        Log.i(TAG, "Service changed, rediscovering");
+        rediscover(gatt);
+    }
+
+    private void rediscover(BluetoothGatt gatt) {
+        gattCache.invalidate(gatt.getDevice().getAddress());
+        transport.clearCharacteristics();
+        operationQueue.enqueue("discoverServices", 10000, BluetoothGatt::discoverServices);
+    }
+
+    //per connection setup once the characteristics are known, from discovery or from the GattCache
+    private void setupCharacteristics(BluetoothGattCharacteristic command, BluetoothGattCharacteristic notificationUpdate,
+                                      boolean cached) {
+        transport.putCharacteristic(command);
+        // the setup traffic below is a burst too, the link drops to IDLE once it is done
+        onSyncActivity();
+        // negotiate the MTU first so every response after this uses full sized chunks
+        operationQueue.enqueue("requestMtu", g -> g.requestMtu(REQUESTED_MTU));
+        // a CCCD write the watch rejects on cached references (GATT_INVALID_HANDLE once its table moved
+        // without a service changed indication) means the cache is wrong, fall back to discovery.
+        // Timeouts and refusals (negative) are left alone, a disconnect produces those as well
+        GattOperationQueue.Listener onSubscribed = !cached ? null : status -> {
+            BluetoothGatt gatt = bluetoothGatt;
+            if (status > BluetoothGatt.GATT_SUCCESS && gatt != null && gattCache.invalidate(gatt.getDevice().getAddress())) {
+                Log.w(TAG, "Subscribing with cached characteristics failed with status " + status + ", rediscovering");
+                rediscover(gatt);
+            }
+        };
+        setCharacteristicNotification(command, true, onSubscribed);
+        if (notificationUpdate != null) {
+            transport.putCharacteristic(notificationUpdate);
+            setCharacteristicNotification(notificationUpdate, true, onSubscribed);
+        }
+    }
+
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
+        setCharacteristicNotification(characteristic, enabled, null);
+    }
+
+    private void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled,
+                                               GattOperationQueue.Listener listener) {
         if (bluetoothGatt == null) {
             Log.w(TAG, "BluetoothGatt not initialized, cannot set characteristic notification.");
             return;
@@ -136,31 +434,177 @@ public class BLEGATT extends BluetoothGattCallback {
         
         bluetoothGatt.setCharacteristicNotification(characteristic, enabled);
 
-        if (MainActivity.CHARACTERISTIC_NOTIFICATION_UPDATE.equals(characteristic.getUuid().toString())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb")); // Standard CCCD UUID
-            if (descriptor != null) {
-                descriptor.setValue(enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                bluetoothGatt.writeDescriptor(descriptor);
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(WatchUuids.CCCD_UUID);
+        if (descriptor != null) {
+            final byte[] value = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+            operationQueue.enqueue("writeDescriptor", GattOperationQueue.DEFAULT_TIMEOUT_MS, gatt -> {
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }, listener);
+        } else {
+            Log.w(TAG, "Descriptor not found for characteristic: " + characteristic.getUuid());
+        }
+    }
+
+    //sends a response to the watch, see WatchLink for the chunking and streaming
+    public void sendMessage(String message) {
+        link.sendMessage(message);
+    }
+
+    //sends a binary frame the same way as sendMessage
+    public void sendBytes(byte[] payload) {
+        link.sendBytes(payload);
+    }
+
+    //pushes a single notification change to the watch, see WatchLink
+    public void sendNotificationDelta(String deltaType, String key, String data) {
+        link.sendNotificationDelta(deltaType, key, data);
+    }
+
+    //calendar changes reuse the notification delta channel with the CalendarCache event_* types,
+    //they are only pushed while the watch is connected, it asks for the full day on reconnect
+    private void sendCalendarDelta(String type, String key, String record) {
+        if (!link.canSendDeltas()) {
+            return;
+        }
+        sendNotificationDelta(type, key, record.endsWith("\n") ? record.substring(0, record.length() - 1) : record);
+    }
+
+    public CharacteristicDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public GattCache getGattCache() {
+        return gattCache;
+    }
+
+    public ReconnectEngine getReconnectEngine() {
+        return reconnectEngine;
+    }
+
+    public WatchLink getLink() {
+        return link;
+    }
+
+    public ThroughputMeter getAcknowledgedThroughput() {
+        return link.getAcknowledgedThroughput();
+    }
+
+    public ThroughputMeter getStreamingThroughput() {
+        return link.getStreamingThroughput();
+    }
+
+    //a command with a request id ("#7 /calendar", once multiplexing is on) is answered with that id,
+    //so several can be in flight at once
+    private void handleCommand(String request) {
+        Log.i(TAG, "Received command: " + request);
+        int requestId = WatchLink.requestId(request);
+        String command = WatchLink.stripRequestId(request);
+        boolean binaryFormat = link.isBinaryFormat();
+        if (link.handleProtocolCommand(requestId, command)) {
+            Log.i(TAG, "Response format: " + (link.isBinaryFormat() ? WireFormat.FORMAT_BINARY : WireFormat.FORMAT_TEXT)
+                    + ", compression: " + (link.isCompression() ? PayloadCompressor.NAME : "off")
+                    + ", multiplexing: " + (link.isMultiplexing() ? "on" : "off"));
+        } else if (command.startsWith("/notifications")) {
+            notificationRequests.add(requestId);
+            Intent i = new Intent(NLService.GET_NOTIFICATION_INTENT);
+            i.setPackage(context.getPackageName());
+            i.putExtra("command", NLService.COMMAND_LIST);
+            i.putExtra("format", binaryFormat ? WireFormat.FORMAT_BINARY : WireFormat.FORMAT_TEXT);
+            context.sendBroadcast(i);
+        } else if (command.startsWith("/calendarPage")) {
+            //"/calendarPage <page> [days]", page 0 starts a new window
+            String[] args = command.substring("/calendarPage".length()).trim().split("\\s+");
+            int page = parseInt(args[0], 0);
+            int days = args.length > 1 ? parseInt(args[1], CalendarPager.DEFAULT_LOOKAHEAD_DAYS) : CalendarPager.DEFAULT_LOOKAHEAD_DAYS;
+            if (binaryFormat) {
+                link.sendBytes(requestId, calendarPager.getPageFrame(Math.max(page, 0), days));
             } else {
-                Log.w(TAG, "Descriptor not found for characteristic: " + characteristic.getUuid());
+                link.sendMessage(requestId, calendarPager.getPageText(Math.max(page, 0), days));
             }
+        } else if (command.startsWith("/calendar")) {
+            if (binaryFormat) {
+                link.sendBytes(requestId, calendarCache.getFrame());
+            } else {
+                link.sendMessage(requestId, calendarCache.getText());
+            }
+        } else if (command.startsWith("/isPlaying")) {
+            link.sendMessage(requestId, SpotifyReceiver.isPlaying());
+        } else if (command.startsWith("/currentSong")) {
+            link.sendMessage(requestId, SpotifyReceiver.getSongData());
+        } else if (command.startsWith("/nowPlaying")) {
+            link.sendBytes(requestId, new WireFormat.Encoder(WireFormat.TYPE_NOW_PLAYING, true)
+                    .record(SpotifyReceiver.isPlaying(), SpotifyReceiver.getSongData()).finish());
+        } else {
+            Log.w(TAG, "Unhandled command: " + command);
+        }
+    }
+
+    private static int parseInt(String value, int fallback) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
         }
     }
 
     @Override
-    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        operationQueue.complete("requestMtu", status);
         if (status == BluetoothGatt.GATT_SUCCESS) {
-            Log.i(TAG, "onCharacteristicRead for " + characteristic.getUuid().toString() + " Data: " + new String(characteristic.getValue()));
+            transport.setMtu(mtu);
+            Log.i(TAG, "MTU negotiated: " + mtu + ", chunk size " + MessageClipper.chunkSizeForMtu(mtu));
         } else {
+            Log.w(TAG, "MTU request failed with status " + status + ", staying at " + transport.getMtu());
+        }
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        Log.i(TAG, "PHY updated tx=" + txPhy + " rx=" + rxPhy + " status: " + status);
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        operationQueue.complete("writeCharacteristic", status);
+        lastSyncActivity = SystemClock.elapsedRealtime();
+        Trace.record(Trace.Event.CHARACTERISTIC_WRITE, Trace.characteristic(characteristic.getUuid()), status);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "onCharacteristicWrite error for " + characteristic.getUuid().toString() + " status: " + status);
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        operationQueue.complete("writeDescriptor", status);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "onDescriptorWrite error for " + descriptor.getUuid().toString() + " status: " + status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        operationQueue.complete("readCharacteristic", status);
+        byte[] value = characteristic.getValue();
+        Trace.record(Trace.Event.CHARACTERISTIC_READ, Trace.characteristic(characteristic.getUuid()), status,
+                value != null ? value.length : 0);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
             Log.w(TAG, "onCharacteristicRead error for " + characteristic.getUuid().toString() + " status: " + status);
         }
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        Log.i(TAG, "onCharacteristicChanged for " + characteristic.getUuid().toString() + ". New data: " + new String(characteristic.getValue()));
-        if (MainActivity.CHARACTERISTIC_NOTIFICATION_UPDATE.equals(characteristic.getUuid().toString())) {
-            // MainActivity.updateNotifications(); // Potentially call this if needed
-        }
+        byte[] value = characteristic.getValue();
+        Trace.record(Trace.Event.CHARACTERISTIC_CHANGED, Trace.characteristic(characteristic.getUuid()),
+                value != null ? value.length : 0, Trace.text(value));
+        transport.onValue(characteristic.getUuid(), value);
     }
+
+    private void onCommandValue(byte[] value) {
+        //a repeat of a command that has not been answered yet is answered once
+        final String command = new String(value);
+        BleWorker.get().postLatest("command " + command, () -> handleCommand(command));
+    }
+
 }
@@ -1,32 +1,41 @@
 package com.example.smartwatchcompanionappv2;
 
-import android.Manifest;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanResult;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.core.content.ContextCompat;
-
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * BLEScanReceiver is a BroadcastReceiver that handles Bluetooth Low Energy (BLE)
- * scan results and Bluetooth adapter state changes. It populates a list of
- * discovered BLE devices and can interact with MainActivity to update the UI.
+ * scan results and Bluetooth adapter state changes. It keeps the registry of
+ * devices found by {@link WatchScanner} and can interact with MainActivity to update the UI.
  */
 public class BLEScanReceiver extends BroadcastReceiver {
     // Tag for logging, using the class's simple name for easy identification
     private static final String TAG = BLEScanReceiver.class.getSimpleName();
     // BluetoothAdapter for managing Bluetooth operations like scanning
     private BluetoothAdapter mBluetoothAdapter;
-    // List to store discovered Bluetooth LE devices to avoid duplicates and manage connections
-    public static ArrayList<BluetoothDevice> mLeDevices = new ArrayList<>();
+    // Discovered Bluetooth LE devices keyed by address, with RSSI and last seen time per device
+    public static final DeviceRegistry<BluetoothDevice> devices = new DeviceRegistry<>();
+    // How long new devices are collected before the UI gets them as one update
+    public static final long UI_BATCH_MS = 500;
+    // Main thread handler used to batch UI updates and age out devices that stopped advertising
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable publishRunnable = BLEScanReceiver::publishDevices;
+    // When the pending publishDevices run is due (0 if none), guarded by devices
+    private static long publishAt = 0;
 
     /**
      * Default constructor for BLEScanReceiver.
@@ -36,17 +45,39 @@ public class BLEScanReceiver extends BroadcastReceiver {
     }
 
     /**
-     * This method is called when the BroadcastReceiver is receiving an Intent broadcast.
-     * It handles Bluetooth device discovery (ACTION_FOUND for classic devices, though this
-     * receiver focuses on BLE) and Bluetooth adapter state changes (ACTION_STATE_CHANGED).
+     * This method is called on the main thread when the BroadcastReceiver is receiving an Intent
+     * broadcast, the work itself is handed off to {@link BleWorker}. It handles Bluetooth device
+     * discovery (ACTION_FOUND for classic devices, though this receiver focuses on BLE) and
+     * Bluetooth adapter state changes (ACTION_STATE_CHANGED).
      *
      * @param context The Context in which the receiver is running.
      * @param intent  The Intent being received, containing the action and any relevant extras.
      */
-    @SuppressLint("MissingPermission") // Permissions are checked before BLE operations
-    @SuppressWarnings("deprecation") // Suppresses warnings for deprecated Bluetooth APIs like stopLeScan
     @Override
     public void onReceive(Context context, Intent intent) {
+        // Hand the broadcast to the BLE worker thread right away, goAsync keeps the broadcast
+        // alive until the worker has finished with it.
+        final PendingResult result = goAsync();
+        boolean queued = BleWorker.get().post("scanReceiver", () -> {
+            try {
+                handleIntent(context, intent);
+            } finally {
+                result.finish();
+            }
+        });
+        if (!queued) {
+            result.finish();
+        }
+    }
+
+    /**
+     * Handles a received broadcast on the BLE worker thread.
+     *
+     * @param context The Context in which the receiver is running.
+     * @param intent  The Intent being received, containing the action and any relevant extras.
+     */
+    @SuppressLint("MissingPermission") // Permissions are checked before BLE operations
+    private void handleIntent(Context context, Intent intent) {
         // Initialize BluetoothAdapter if it hasn't been already.
         // This ensures the adapter is available for use within onReceive.
         if (mBluetoothAdapter == null) {
@@ -95,28 +126,27 @@ public class BLEScanReceiver extends BroadcastReceiver {
                 }
                 Log.d(TAG, "Classic Bluetooth device found: " + deviceName + " (" + deviceAddress + ")");
             }
+        // Handle results of the PendingIntent scan ReconnectEngine runs while the watch is away.
+        } else if (ReconnectEngine.ACTION_SCANNER_FOUND_DEVICE.equals(action)) {
+            int errorCode = intent.getIntExtra(BluetoothLeScanner.EXTRA_ERROR_CODE, 0);
+            if (errorCode != 0) {
+                Log.e(TAG, "Reconnect scan failed with error " + errorCode);
+                return;
+            }
+            ArrayList<ScanResult> results = intent.getParcelableArrayListExtra(BluetoothLeScanner.EXTRA_LIST_SCAN_RESULT);
+            if (results != null) {
+                for (ScanResult result : results) {
+                    onAdvertisement(result.getDevice(), result.getRssi());
+                }
+            }
         // Handle Bluetooth adapter state changes (ACTION_STATE_CHANGED).
         } else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
             final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
             switch (state) {
                 case BluetoothAdapter.STATE_OFF:
                     Log.d(TAG, "Bluetooth off");
-                    // If Bluetooth is turned off, attempt to stop any ongoing LE scan.
-                    if (mBluetoothAdapter != null) {
-                        // Check for BLUETOOTH_SCAN permission before stopping scan.
-                        if (ContextCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED) {
-                            try {
-                                Log.d(TAG, "Attempting to stop LE scan due to Bluetooth turning off.");
-                                mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                            } catch (SecurityException e) {
-                                // This catch block might be redundant if checkSelfPermission is effective,
-                                // but kept for robustness.
-                                Log.e(TAG, "SecurityException on stopLeScan (STATE_OFF)", e);
-                            }
-                        } else {
-                             Log.w(TAG, "BLUETOOTH_SCAN permission not granted. Cannot stop LE scan (STATE_OFF).");
-                        }
-                    }
+                    // If Bluetooth is turned off, stop any ongoing LE scan.
+                    WatchScanner.get().stop();
                     break;
                 case BluetoothAdapter.STATE_TURNING_OFF:
                     Log.d(TAG, "Turning Bluetooth off...");
@@ -134,54 +164,54 @@ public class BLEScanReceiver extends BroadcastReceiver {
     }
 
     /**
-     * Callback for Bluetooth LE scan results.
-     * This callback is triggered when an LE device is found during a scan
-     * initiated by {@link BluetoothAdapter#startLeScan(BluetoothAdapter.LeScanCallback)}.
-     * It adds the discovered device to the {@code mLeDevices} list if it's not already present
-     * and attempts to update the UI in MainActivity if a reference to it is available.
+     * Called for every advertisement that passed the controller's scan filter, from
+     * {@link WatchScanner} or from the PendingIntent scan of {@link ReconnectEngine}. It records the advertisement in {@code devices} (an O(1) lookup by address) and,
+     * when the device is new, schedules a batched UI update instead of posting one per device.
      */
-    @SuppressLint("MissingPermission") // Permissions are checked within the callback where device.getName() is called
-    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
-            (device, rssi, scanRecord) -> {
-                if (device != null) {
-                    boolean found = false;
-                    // Check if the device is already in the list to avoid duplicates.
-                    for (BluetoothDevice d : mLeDevices) {
-                        if (d.getAddress().equals(device.getAddress())) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    // If device is not found in the list, add it.
-                    if (!found) {
-                        mLeDevices.add(device);
-                        String deviceName = null;
-                        // Attempt to get device name if BLUETOOTH_CONNECT permission is granted.
-                        // This requires context; attempting to get it from MainActivity.reference.
-                        Context mainActivityContext = MainActivity.reference != null ? MainActivity.reference.getApplicationContext() : null;
-                        if (mainActivityContext != null && ContextCompat.checkSelfPermission(mainActivityContext, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                            try {
-                               deviceName = device.getName(); // This call requires BLUETOOTH_CONNECT
-                            } catch (SecurityException e) {
-                               // Log security exception if getName fails despite permission check (e.g., if context or permission state changed).
-                               Log.e(TAG, "SecurityException on device.getName() in callback", e);
-                            }
-                        } else {
-                            // Log warning if permission is not granted or context is null, as device name cannot be retrieved.
-                            Log.w(TAG, "BLUETOOTH_CONNECT permission not granted for getting device name or context is null in callback.");
-                        }
-                        Log.i(TAG, "Added LE device: " + (deviceName != null ? deviceName : "Unknown") + " with address " + device.getAddress());
+    static void onAdvertisement(BluetoothDevice device, int rssi) {
+        if (device != null) {
+            // the reconnect engine connects as soon as the lost watch shows up again
+            ReconnectEngine.onDeviceSeen(device.getAddress());
+        }
+        if (device != null && devices.onAdvertisement(device.getAddress(), device, rssi, SystemClock.elapsedRealtime())) {
+            // names are resolved when the list is shown, the callback only records the find
+            Trace.record(Trace.Event.DEVICE_FOUND, Trace.address(device.getAddress()), rssi);
+            schedulePublish(UI_BATCH_MS);
+        }
+    }
 
-                        // If MainActivity reference is available, update its device list on the UI thread.
-                        // This allows the UI to reflect newly discovered devices.
-                        if (MainActivity.reference != null) {
-                            MainActivity.reference.runOnUiThread(() -> {
-                                if (MainActivity.reference != null) { // Double-check reference as it can be nullified
-                                    MainActivity.reference.updateDeviceList(device);
-                                }
-                            });
-                        }
-                    }
-                }
-            };
+    /**
+     * Schedules {@link #publishDevices} unless a run is already due at least as soon, so a
+     * burst of newly discovered devices reaches the UI as a single update.
+     */
+    private static void schedulePublish(long delayMs) {
+        long at = SystemClock.elapsedRealtime() + delayMs;
+        synchronized (devices) {
+            if (publishAt != 0 && publishAt <= at) {
+                return;
+            }
+            publishAt = at;
+        }
+        uiHandler.removeCallbacks(publishRunnable);
+        uiHandler.postDelayed(publishRunnable, delayMs);
+    }
+
+    /**
+     * Runs on the main thread: ages out devices that stopped advertising and, if the set of
+     * devices changed since the last run, hands the whole list to MainActivity at once. Keeps
+     * re-checking for stale devices while any are known.
+     */
+    private static void publishDevices() {
+        synchronized (devices) {
+            publishAt = 0;
+        }
+        devices.ageOut(SystemClock.elapsedRealtime());
+        if (devices.takeChanged() && MainActivity.reference != null) {
+            List<BluetoothDevice> current = devices.devices();
+            MainActivity.reference.updateDeviceList(current);
+        }
+        if (devices.size() > 0) {
+            schedulePublish(DeviceRegistry.STALE_AFTER_MS);
+        }
+    }
 }
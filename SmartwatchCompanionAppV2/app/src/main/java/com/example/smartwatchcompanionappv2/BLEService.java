@@ -5,20 +5,43 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
 public class BLEService extends Service {
 
     private static final String TAG = "BLEService"; // Made final
+    // only touched on the BleWorker thread
     private BLEGATT blegatt;
     // private static BLEService reference; // Field removed
     public static final String CHANNEL_ID = "com.companionApp.UPDATE_SERVICE";
+    public static final String ACTION_DUMP_DIAGNOSTICS = "com.companionApp.DUMP_DIAGNOSTICS";
+    public static final String METRICS_FILE = "metrics.txt";
+    public static final String TRACE_FILE = "trace.txt";
+    private static final int NOTIFICATION_ID = 1;
+    // the notification only shows a summary, there is no point waking up more often
+    private static final long METRICS_REFRESH_MS = 30000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable metricsRefresh = this::refreshMetrics;
+    private NotificationCompat.Builder notificationBuilder;
+    private String shownSummary;
 
     public static Boolean isRunning = false;
 
@@ -34,14 +57,21 @@ public class BLEService extends Service {
         PendingIntent pendingIntent =
                 PendingIntent.getActivity(this.getApplicationContext(), 300, notificationIntent, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
 
-        Notification notification = new NotificationCompat.Builder(this.getApplicationContext(), CHANNEL_ID)
+        Intent dumpIntent = new Intent(this.getApplicationContext(), BLEService.class).setAction(ACTION_DUMP_DIAGNOSTICS);
+        PendingIntent dumpPendingIntent =
+                PendingIntent.getService(this.getApplicationContext(), 301, dumpIntent, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+
+        notificationBuilder = new NotificationCompat.Builder(this.getApplicationContext(), CHANNEL_ID)
                 .setContentTitle("ESP32 Smartwatch")
                 .setContentText("BLE Gatt Server Is Running...")
                 .setSmallIcon(R.mipmap.ic_launcher) // Make sure this resource exists
                 .setContentIntent(pendingIntent)
-                .build();
+                .addAction(0, "Save diagnostics", dumpPendingIntent)
+                .setOnlyAlertOnce(true);
+        Notification notification = notificationBuilder.build();
 
-        startForeground(1, notification);
+        startForeground(NOTIFICATION_ID, notification);
+        handler.postDelayed(metricsRefresh, METRICS_REFRESH_MS);
     }
 
     @Override
@@ -49,16 +79,30 @@ public class BLEService extends Service {
         Log.i(TAG, "Started BLE Handler Service with ID:" + startId);
         isRunning = true;
 
+        // the notification's "Save diagnostics" action, the connection is left alone
+        if (intent != null && ACTION_DUMP_DIAGNOSTICS.equals(intent.getAction())) {
+            BleWorker.get().post("dumpDiagnostics", () -> dumpDiagnostics(getApplicationContext()));
+            return START_STICKY;
+        }
+
         MainActivity.updateStatusText(); // Call to static method in MainActivity
 
-        blegatt = new BLEGATT(this.getApplicationContext());
+        // BLEGATT is owned by the BLE worker thread, the connect path never runs on the main looper
+        BleWorker.get().post("connect", () -> {
+            if (blegatt != null) {
+                // a repeated start command replaces the previous connection instead of leaking it
+                blegatt.disconnect();
+                blegatt.close();
+            }
+            blegatt = new BLEGATT(this.getApplicationContext());
 
-        if (MainActivity.currentDevice != null) {
-            blegatt.connect(MainActivity.currentDevice.getAddress());
-        } else {
-            Log.e(TAG, "MainActivity.currentDevice is null, cannot connect.");
-            // Handle the case where currentDevice is null, perhaps stop the service or attempt to scan
-        }
+            if (MainActivity.currentDevice != null) {
+                blegatt.connect(MainActivity.currentDevice.getAddress());
+            } else {
+                Log.e(TAG, "MainActivity.currentDevice is null, cannot connect.");
+                // Handle the case where currentDevice is null, perhaps stop the service or attempt to scan
+            }
+        });
 
         return START_STICKY;
     }
@@ -66,10 +110,14 @@ public class BLEService extends Service {
     @Override
     public void onDestroy() {
         Log.i(TAG, "BLEService is now ending");
-        if (blegatt != null) {
-            blegatt.disconnect();
-            blegatt.close();
-        }
+        handler.removeCallbacks(metricsRefresh);
+        BleWorker.get().post("disconnect", () -> {
+            if (blegatt != null) {
+                blegatt.disconnect();
+                blegatt.close();
+                blegatt = null;
+            }
+        });
         isRunning = false;
         MainActivity.updateStatusText(); // Update UI if needed
         super.onDestroy();
@@ -81,6 +129,51 @@ public class BLEService extends Service {
         return null;
     }
 
+    /**
+     * Writes {@link Metrics#dump()} to metrics.txt and {@link Trace#dump()} to trace.txt in the
+     * app's external files directory (adb pull-able without root), or internal storage if that
+     * is not mounted. Returns the directory, or null if a file could not be written. Does file
+     * I/O, keep it off the main thread.
+     */
+    public static File dumpDiagnostics(Context context) {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = context.getFilesDir();
+        }
+        String header = "# " + new Date() + "\n";
+        // not short-circuited, the trace is still worth having if the metrics file failed
+        boolean written = writeDiagnostics(new File(dir, METRICS_FILE), header + Metrics.dump())
+                & writeDiagnostics(new File(dir, TRACE_FILE), header + Trace.dump());
+        return written ? dir : null;
+    }
+
+    private static boolean writeDiagnostics(File file, String text) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(text);
+            Log.i(TAG, "Diagnostics written to " + file);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+            return false;
+        }
+    }
+
+    // swaps the running text for the metrics summary, the notification is only reposted when it changed
+    private void refreshMetrics() {
+        String summary = Metrics.summary();
+        if (!summary.equals(shownSummary)) {
+            shownSummary = summary;
+            NotificationManager manager = getSystemService(NotificationManager.class);
+            if (manager != null) {
+                manager.notify(NOTIFICATION_ID, notificationBuilder
+                        .setContentText(summary)
+                        .setStyle(new NotificationCompat.BigTextStyle().bigText(summary))
+                        .build());
+            }
+        }
+        handler.postDelayed(metricsRefresh, METRICS_REFRESH_MS);
+    }
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel serviceChannel = new NotificationChannel(
@@ -0,0 +1,39 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.UUID;
+
+/**
+ * The link to the watch as the sync pipeline sees it: queued writes and reads on the
+ * watch's characteristics and the values the watch notifies. {@link GattTransport} runs
+ * it over BluetoothGatt, the unit tests run the same pipeline over a simulated link.
+ * <p>
+ * Operations run one at a time in the order they were queued. Their completions report
+ * {@link #STATUS_SUCCESS} or the failure status (a GATT status or one of the
+ * GattOperationQueue ones).
+ */
+public interface BleTransport {
+    int STATUS_SUCCESS = 0;
+
+    interface Completion {
+        void onComplete(int status);
+    }
+
+    //values notified by the watch
+    interface Receiver {
+        void onValue(UUID characteristic, byte[] value);
+    }
+
+    void setReceiver(Receiver receiver);
+
+    int getMtu();
+
+    boolean hasCharacteristic(UUID characteristic);
+
+    boolean supportsWriteWithoutResponse(UUID characteristic);
+
+    //acknowledged writes complete once the watch confirmed them, the others once the stack took them,
+    //done may be null
+    void write(UUID characteristic, byte[] value, boolean withResponse, Completion done);
+
+    void read(UUID characteristic, Completion done);
+}
@@ -0,0 +1,144 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The single background thread that owns BLEGATT, the GATT operation queue and all
+ * payload building (notification lists, calendar queries, chunking). Broadcast
+ * receivers, GATT callbacks and service entry points hand their work off here right
+ * away so none of it runs on the main looper.
+ * <p>
+ * The queue is bounded: once {@link #MAX_PENDING} tasks are waiting, {@link #post}
+ * drops new work and reports it. Work where only the latest request matters (a repeated
+ * watch command, a notification list request) goes through {@link #postLatest}, which
+ * merges into an already queued task with the same key instead of adding another one.
+ * Work that can neither be merged nor retried, such as the start and end markers of a
+ * notification list, goes through {@link #postRequired}, which is never dropped.
+ */
+public class BleWorker {
+    private static final String TAG = "BleWorker";
+
+    public static final int MAX_PENDING = 256;
+
+    private static BleWorker instance;
+
+    public static synchronized BleWorker get() {
+        if (instance == null) {
+            instance = new BleWorker();
+        }
+        return instance;
+    }
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    //guarded by this
+    private final Map<String, Runnable> latest = new HashMap<>();
+    private int pending = 0;
+    private int maxPending = 0;
+    private long postedCount = 0;
+    private long droppedCount = 0;
+    private long mergedCount = 0;
+
+    private BleWorker() {
+        thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    public Looper getLooper() {
+        return thread.getLooper();
+    }
+
+    public boolean isWorkerThread() {
+        return Looper.myLooper() == thread.getLooper();
+    }
+
+    /**
+     * Queues a task, returns false (and drops it) if the queue is full.
+     */
+    public boolean post(String name, Runnable task) {
+        synchronized (this) {
+            if (pending >= MAX_PENDING) {
+                droppedCount++;
+                Log.w(TAG, "Queue full, dropping " + name);
+                return false;
+            }
+            reserve();
+        }
+        handler.post(() -> run(name, task));
+        return true;
+    }
+
+    /**
+     * Queues a task even if the queue is full. Only for events whose loss would break the
+     * protocol, they still count towards the pending tasks.
+     */
+    public void postRequired(String name, Runnable task) {
+        synchronized (this) {
+            reserve();
+        }
+        handler.post(() -> run(name, task));
+    }
+
+    /**
+     * Queues a task unless one with the same key is still waiting, in which case that
+     * task is replaced and only the newest one runs. Returns false if the task was dropped.
+     */
+    public boolean postLatest(String key, Runnable task) {
+        synchronized (this) {
+            if (latest.put(key, task) != null) {
+                mergedCount++;
+                return true;
+            }
+            if (pending >= MAX_PENDING) {
+                latest.remove(key);
+                droppedCount++;
+                Log.w(TAG, "Queue full, dropping " + key);
+                return false;
+            }
+            reserve();
+        }
+        handler.post(() -> {
+            Runnable newest;
+            synchronized (this) {
+                newest = latest.remove(key);
+            }
+            run(key, newest);
+        });
+        return true;
+    }
+
+    public synchronized String getStats() {
+        return "posted=" + postedCount
+                + " merged=" + mergedCount
+                + " dropped=" + droppedCount
+                + " pending=" + pending
+                + " maxPending=" + maxPending;
+    }
+
+    private void reserve() {
+        pending++;
+        postedCount++;
+        maxPending = Math.max(maxPending, pending);
+    }
+
+    private void run(String name, Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            //one bad payload must not take the thread (and with it every later sync) down
+            Log.e(TAG, name + " failed", e);
+        } finally {
+            synchronized (this) {
+                pending--;
+            }
+        }
+    }
+}
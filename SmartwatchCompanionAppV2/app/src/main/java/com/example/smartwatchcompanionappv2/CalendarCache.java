@@ -0,0 +1,184 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.provider.CalendarContract;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory copy of today's calendar events so repeated "/calendar" requests from the
+ * watch are answered without touching the calendar provider. The snapshot is dropped
+ * when the day rolls over and refreshed when a {@link ContentObserver} on the calendar
+ * provider fires; the refresh is diffed against the previous snapshot and only the
+ * events that were added, changed or removed are handed to the {@link ChangeListener}.
+ */
+public class CalendarCache {
+    private static final String TAG = "CalendarCache";
+
+    public static final String EVENT_ADD = "event_add";
+    public static final String EVENT_UPDATE = "event_update";
+    public static final String EVENT_REMOVE = "event_remove";
+
+    //calendar edits usually arrive as a burst of provider notifications
+    public static final long REFRESH_DELAY_MS = 500;
+
+    public interface ChangeListener {
+        //record is the text format line of the event, empty for EVENT_REMOVE
+        void onEventChanged(String type, String key, String record);
+    }
+
+    public static final class Event {
+        public final String key;
+        public final String title;
+        public final String description;
+        public final String startTime;
+        public final String endTime;
+        public final String location;
+        public final String record;
+
+        Event(String key, String title, String description, String startTime, String endTime, String location) {
+            this.key = key;
+            this.title = title;
+            this.description = description;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.location = location;
+            this.record = CalendarReader.appendRecord(new StringBuilder(), title, description, startTime, endTime, location).toString();
+        }
+    }
+
+    private final Context context;
+    private final ChangeListener listener;
+    private final Handler handler;
+    private final Runnable refreshRunnable = this::refresh;
+    private final ContentObserver observer;
+
+    //guarded by this, events is null until the watch asks for the calendar the first time
+    private List<Event> events;
+    private long dayStart;
+    private String text;
+    private byte[] frame;
+    private long queryCount = 0;
+    private long hitCount = 0;
+
+    public CalendarCache(Context context, ChangeListener listener) {
+        this.context = context;
+        this.listener = listener;
+        this.handler = new Handler(BleWorker.get().getLooper());
+        this.observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                handler.removeCallbacks(refreshRunnable);
+                handler.postDelayed(refreshRunnable, REFRESH_DELAY_MS);
+            }
+        };
+    }
+
+    public void register() {
+        context.getContentResolver().registerContentObserver(CalendarContract.CONTENT_URI, true, observer);
+    }
+
+    public void unregister() {
+        context.getContentResolver().unregisterContentObserver(observer);
+        handler.removeCallbacks(refreshRunnable);
+    }
+
+    //today's events, queried only if nothing is cached or the day rolled over since
+    public synchronized List<Event> getEvents() {
+        long today = CalendarReader.getDayStart(System.currentTimeMillis());
+        if (events == null || dayStart != today) {
+            replace(query(), today);
+        } else {
+            hitCount++;
+        }
+        return events;
+    }
+
+    //the "/calendar" text response built from the cached events
+    public synchronized String getText() {
+        List<Event> current = getEvents();
+        if (text == null) {
+            StringBuilder sb = new StringBuilder();
+            for (Event event : current) {
+                sb.append(event.record);
+            }
+            text = sb.toString();
+        }
+        return text;
+    }
+
+    //the "/calendar" binary response built from the cached events
+    public synchronized byte[] getFrame() {
+        List<Event> current = getEvents();
+        if (frame == null) {
+            WireFormat.Encoder encoder = new WireFormat.Encoder(WireFormat.TYPE_CALENDAR, true);
+            for (Event event : current) {
+                encoder.record(event.title, event.description, event.startTime, event.endTime, event.location);
+            }
+            frame = encoder.finish();
+        }
+        return frame;
+    }
+
+    public synchronized String getStats() {
+        return "queries=" + queryCount + " hits=" + hitCount + " events=" + (events != null ? events.size() : 0);
+    }
+
+    //re-queries after a provider change and reports the difference to the listener. Nothing is
+    //reported while no snapshot is cached, the watch has not seen any events to update yet
+    private void refresh() {
+        List<String[]> changes = new ArrayList<>();
+        synchronized (this) {
+            if (events == null) {
+                return;
+            }
+            List<Event> fresh = query();
+            Map<String, Event> previous = new LinkedHashMap<>();
+            for (Event event : events) {
+                previous.put(event.key, event);
+            }
+            for (Event event : fresh) {
+                Event old = previous.remove(event.key);
+                if (old == null) {
+                    changes.add(new String[]{EVENT_ADD, event.key, event.record});
+                } else if (!old.record.equals(event.record)) {
+                    changes.add(new String[]{EVENT_UPDATE, event.key, event.record});
+                }
+            }
+            for (Event removed : previous.values()) {
+                changes.add(new String[]{EVENT_REMOVE, removed.key, ""});
+            }
+            replace(fresh, CalendarReader.getDayStart(System.currentTimeMillis()));
+        }
+        Log.i(TAG, "Calendar changed, " + changes.size() + " events to resend");
+        for (String[] change : changes) {
+            listener.onEventChanged(change[0], change[1], change[2]);
+        }
+    }
+
+    private List<Event> query() {
+        queryCount++;
+        List<Event> result = new ArrayList<>();
+        try {
+            CalendarReader.readEvents(context, (key, startDate, title, description, startTime, endTime, location) ->
+                    result.add(new Event(key, title, description, startTime, endTime, location)));
+        } catch (SecurityException e) {
+            Log.e(TAG, "Missing calendar permission", e);
+        }
+        return result;
+    }
+
+    private void replace(List<Event> fresh, long day) {
+        events = Collections.unmodifiableList(fresh);
+        dayStart = day;
+        text = null;
+        frame = null;
+    }
+}
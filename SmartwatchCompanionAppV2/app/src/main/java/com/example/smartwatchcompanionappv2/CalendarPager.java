@@ -0,0 +1,133 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Pages a multi-day calendar window to the watch. The watch pulls one page of
+ * {@link #PAGE_SIZE} events at a time with "/calendarPage &lt;page&gt; [days]" so a busy week
+ * never has to fit into a single transfer or into the watch's RAM.
+ * <p>
+ * Page 0 runs the instances query and keeps its cursor open; later pages are mapped
+ * straight from that cursor when they are asked for, nothing is materialized up front.
+ * The cursor is closed after the last page, when the calendar changes underneath it,
+ * when the watch stops pulling for {@link #IDLE_CLOSE_MS} and on disconnect. A page
+ * request for a closed window simply re-runs the query.
+ */
+public class CalendarPager {
+    private static final String TAG = "CalendarPager";
+
+    public static final int PAGE_SIZE = 8;
+    public static final int DEFAULT_LOOKAHEAD_DAYS = 7;
+    public static final int MAX_LOOKAHEAD_DAYS = 31;
+    public static final long IDLE_CLOSE_MS = 30000;
+
+    private final Context context;
+    private final Handler handler = new Handler(BleWorker.get().getLooper());
+    private final Runnable idleClose = this::close;
+    private final ContentObserver changeObserver = new ContentObserver(handler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            Log.i(TAG, "Calendar changed, closing the paged window");
+            close();
+        }
+    };
+
+    //guarded by this
+    private Cursor cursor;
+    private long windowStart;
+    private int windowDays;
+
+    public CalendarPager(Context context) {
+        this.context = context;
+    }
+
+    //days outside 1..MAX_LOOKAHEAD_DAYS fall back to DEFAULT_LOOKAHEAD_DAYS
+    public static int clampDays(int days) {
+        return days >= 1 && days <= MAX_LOOKAHEAD_DAYS ? days : DEFAULT_LOOKAHEAD_DAYS;
+    }
+
+    /**
+     * Text page: a "page;pageCount;eventCount;" header line followed by up to PAGE_SIZE
+     * "title;description;startDate;startTime;endTime;eventLocation;" lines.
+     */
+    public synchronized String getPageText(int page, int days) {
+        StringBuilder sb = new StringBuilder();
+        Cursor cur = open(days, page == 0);
+        int eventCount = cur != null ? cur.getCount() : 0;
+        sb.append(page).append(';').append(pageCount(eventCount)).append(';').append(eventCount).append(";\n");
+        if (cur != null) {
+            CalendarReader.mapRows(cur, page * PAGE_SIZE, PAGE_SIZE,
+                    (key, startDate, title, description, startTime, endTime, location) ->
+                            CalendarReader.appendRecord(sb, title, description, startDate, startTime, endTime, location));
+        }
+        finishPage(page, eventCount);
+        return sb.toString();
+    }
+
+    /**
+     * Binary page: a TYPE_CALENDAR_PAGE frame whose first record is the page, pageCount,
+     * eventCount header and the rest "title, description, startDate, startTime, endTime,
+     * location" records.
+     */
+    public synchronized byte[] getPageFrame(int page, int days) {
+        Cursor cur = open(days, page == 0);
+        int eventCount = cur != null ? cur.getCount() : 0;
+        WireFormat.Encoder encoder = new WireFormat.Encoder(WireFormat.TYPE_CALENDAR_PAGE, true)
+                .record(Integer.toString(page), Integer.toString(pageCount(eventCount)), Integer.toString(eventCount));
+        if (cur != null) {
+            CalendarReader.mapRows(cur, page * PAGE_SIZE, PAGE_SIZE,
+                    (key, startDate, title, description, startTime, endTime, location) ->
+                            encoder.record(title, description, startDate, startTime, endTime, location));
+        }
+        finishPage(page, eventCount);
+        return encoder.finish();
+    }
+
+    public synchronized void close() {
+        handler.removeCallbacks(idleClose);
+        if (cursor != null) {
+            cursor.unregisterContentObserver(changeObserver);
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    private static int pageCount(int eventCount) {
+        return (eventCount + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    //reuses the open cursor unless the watch starts over, asks for another window or the day rolled over
+    private Cursor open(int days, boolean restart) {
+        days = clampDays(days);
+        long start = CalendarReader.getDayStart(System.currentTimeMillis());
+        if (cursor != null && !restart && windowStart == start && windowDays == days) {
+            return cursor;
+        }
+        close();
+        try {
+            cursor = CalendarReader.queryInstances(context, start, CalendarReader.addDays(start, days) - 1);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Missing calendar permission", e);
+            cursor = null;
+        }
+        if (cursor != null) {
+            cursor.registerContentObserver(changeObserver);
+            windowStart = start;
+            windowDays = days;
+        }
+        return cursor;
+    }
+
+    private void finishPage(int page, int eventCount) {
+        if ((page + 1) * PAGE_SIZE >= eventCount) {
+            close();
+        } else {
+            handler.removeCallbacks(idleClose);
+            handler.postDelayed(idleClose, IDLE_CLOSE_MS);
+        }
+    }
+}
@@ -5,12 +5,11 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.CalendarContract;
 import android.util.Log;
 
-import java.time.Instant;
 import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.util.GregorianCalendar;
 import java.util.TimeZone;
 
@@ -19,49 +18,70 @@ public class CalendarReader {
     //gets the calender information we want in a string format
     //data format is "title;description;startDate;startTime;endTime;eventLocation;"
     public static String getDataFromEventTable(Context context) {
-        Log.v("calendar", "Obtaining calendar events");
-        String ret = "";
-
+        StringBuilder ret = new StringBuilder();
+        readEvents(context, (key, startDate, title, description, startTime, endTime, location) ->
+                appendRecord(ret, title, description, startTime, endTime, location));
+        return ret.toString();
+    }
 
-        String[] INSTANCE_PROJECTION = new String[]{
-                CalendarContract.Instances.EVENT_ID,
-                CalendarContract.Instances.BEGIN,
-                CalendarContract.Instances.TITLE,
-                CalendarContract.Instances.DESCRIPTION,
-                CalendarContract.Instances.END,
-                CalendarContract.Instances.DTSTART,
-                CalendarContract.Instances.DTEND,
-                CalendarContract.Instances.EVENT_LOCATION
-        };
+    //appends one event in the text format, the start date field is left empty for the time being
+    public static StringBuilder appendRecord(StringBuilder target, String title, String description,
+                                             String startTime, String endTime, String location) {
+        return appendRecord(target, title, description, "", startTime, endTime, location);
+    }
 
-        // Specify the date range you want to search for recurring
-        // event instances
+    public static StringBuilder appendRecord(StringBuilder target, String title, String description, String startDate,
+                                             String startTime, String endTime, String location) {
+        return CalendarRowMapper.appendRecord(target, title, description, startDate, startTime, endTime, location);
+    }
 
+    //start of the current day in milliseconds since epoch, readEvents covers this day
+    public static long getDayStart(long now) {
+        GregorianCalendar time = new GregorianCalendar();
+        time.setTimeZone(TimeZone.getDefault());
+        time.setTimeInMillis(now);
+        time.set(GregorianCalendar.HOUR_OF_DAY, 0);
+        time.set(GregorianCalendar.MINUTE, 0);
+        time.set(GregorianCalendar.SECOND, 0);
+        time.set(GregorianCalendar.MILLISECOND, 0);
+        return time.getTimeInMillis();
+    }
 
-        //specifying date range here, we want to obtain all the events for the day, for that we use
-        //the gregorian calendar, and set it to our timezone then give it the system time
+    //the given day start moved by a number of days, calendar based so DST days keep their 23/25 hours
+    public static long addDays(long dayStart, int days) {
         GregorianCalendar time = new GregorianCalendar();
         time.setTimeZone(TimeZone.getDefault());
-        time.setTimeInMillis(System.currentTimeMillis());
+        time.setTimeInMillis(dayStart);
+        time.add(GregorianCalendar.DAY_OF_MONTH, days);
+        return time.getTimeInMillis();
+    }
 
-        //now we want to set the start time range to the first second of the day
-        time.clear(GregorianCalendar.MINUTE);
-        time.clear(GregorianCalendar.HOUR_OF_DAY);
-        time.set(GregorianCalendar.MINUTE, 0);
-        time.set(GregorianCalendar.HOUR_OF_DAY, 0);
-        long startMillis = time.getTimeInMillis();  //get the time in milliseconds since epoch
+    //queries today's event instances and hands each one to the sink in ascending start order
+    public static void readEvents(Context context, CalendarRowMapper.EventSink sink) {
+        //specifying date range here, we want to obtain all the events for the day
+        long startMillis = getDayStart(System.currentTimeMillis());
+        readEvents(context, startMillis, addDays(startMillis, 1) - 1, sink);
+    }
 
-        //set the end time range to the last second of the day
-        time.clear(GregorianCalendar.MINUTE);
-        time.clear(GregorianCalendar.HOUR_OF_DAY);
-        time.set(GregorianCalendar.MINUTE, 59);
-        time.set(GregorianCalendar.HOUR_OF_DAY, 23);
-        long endMillis = time.getTimeInMillis();   //get the time in milliseconds since epoch
+    //queries the event instances between startMillis and endMillis and hands each one to the sink in
+    //ascending start order, the cursor is closed once every row has been handed over
+    public static void readEvents(Context context, long startMillis, long endMillis, CalendarRowMapper.EventSink sink) {
+        Log.v("calendar", "Obtaining calendar events");
+        try (Cursor cur = queryInstances(context, startMillis, endMillis)) {
+            if (cur == null) {
+                Log.w("calendar", "Calendar provider returned no cursor");
+                return;
+            }
+            mapRows(cur, 0, Integer.MAX_VALUE, sink);
+        }
+    }
 
+    //queries the event instances between startMillis and endMillis sorted by start time, the caller
+    //owns (and has to close) the returned cursor
+    public static Cursor queryInstances(Context context, long startMillis, long endMillis) {
         Log.v("calendar", "Looking for events from " + startMillis + " to " + endMillis);
 
         //create variables we'll need to query the calendar data
-        Cursor cur = null;
         ContentResolver cr = context.getContentResolver();
         String selection = "";
         String[] selectionArgs = new String[]{};
@@ -71,60 +91,58 @@ public class CalendarReader {
         ContentUris.appendId(builder, startMillis);
         ContentUris.appendId(builder, endMillis);
 
-        //query data and sort based on start time in descending order
-        cur = cr.query(builder.build(),
+        //query data and sort based on start time in ascending order (way easier to do on the phone end
+        //of things than the device)
+        long queryStart = SystemClock.elapsedRealtime();
+        Cursor cur = cr.query(builder.build(),
                 INSTANCE_PROJECTION,
                 selection,
                 selectionArgs,
-                CalendarContract.Instances.BEGIN + " ASC"); //sort in ascending order (way easier to do on the phone end of things than the device)
-
-        Log.v("calendar", "Found " + cur.getCount() + " Instances");
+                CalendarContract.Instances.BEGIN + " ASC");
+        if (cur != null) {
+            //getCount() fills the first cursor window, that is where most of the query time goes
+            Log.v("calendar", "Found " + cur.getCount() + " Instances");
+        }
+        Metrics.CALENDAR_QUERY_MS.record(SystemClock.elapsedRealtime() - queryStart);
+        return cur;
+    }
 
-        if (cur.moveToFirst()) {
+    //hands up to count rows starting at row first to the sink, returns the number of rows mapped
+    public static int mapRows(Cursor cur, int first, int count, CalendarRowMapper.EventSink sink) {
+        //column indices and the time formatter are resolved once, not once per row
+        int eventIdColumn = cur.getColumnIndexOrThrow(CalendarContract.Instances.EVENT_ID);
+        int beginColumn = cur.getColumnIndexOrThrow(CalendarContract.Instances.BEGIN);
+        int titleColumn = cur.getColumnIndexOrThrow(CalendarContract.Instances.TITLE);
+        int descriptionColumn = cur.getColumnIndexOrThrow(CalendarContract.Instances.DESCRIPTION);
+        int endColumn = cur.getColumnIndexOrThrow(CalendarContract.Instances.END);
+        int dtStartColumn = cur.getColumnIndexOrThrow(CalendarContract.Instances.DTSTART);
+        int locationColumn = cur.getColumnIndexOrThrow(CalendarContract.Instances.EVENT_LOCATION);
+        CalendarRowMapper mapper = new CalendarRowMapper(ZoneId.systemDefault());
+
+        int mapped = 0;
+        if (cur.moveToPosition(first)) {
             do {
-
-                //parse data out of the query that we want
-                String title = cur.getString(cur.getColumnIndex(CalendarContract.Instances.TITLE)).replace("\n", " ");
-                String description = cur.getString(cur.getColumnIndex(CalendarContract.Instances.DESCRIPTION)).replace("\n", " ");
-                String end = cur.getString(cur.getColumnIndex(CalendarContract.Instances.END)).replace("\n", " ");
-                String dtStart = cur.getString(cur.getColumnIndex(CalendarContract.Instances.DTSTART)).replace("\n", " ");
-                String location = cur.getString(cur.getColumnIndex(CalendarContract.Instances.EVENT_LOCATION)).replace("\n", " ");
-
-                //format date and time
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("hh:mma");
-
-                Long startTimeStringSeconds, endTimeStringSeconds;
-                String startTimeString, endTimeString;
-
-                //convert calendar time from milliseconds since epoch to human readable time
-                try {
-                    startTimeStringSeconds = Long.parseLong(dtStart) / 1000;
-
-                    startTimeString = Instant.ofEpochSecond(startTimeStringSeconds)
-                            .atZone(ZoneId.of(TimeZone.getDefault().getID()))
-                            .format(formatter);
-                } catch (NumberFormatException e) {
-                    startTimeString = "";
-                    Log.v("calendar", "Could not parse start time due to error in event \"" + title + "\": " + e.getMessage());
-                }
-                try {
-                    endTimeStringSeconds = Long.parseLong(end) / 1000;
-
-                    endTimeString = Instant.ofEpochSecond(endTimeStringSeconds)
-                            .atZone(ZoneId.of(TimeZone.getDefault().getID()))
-                            .format(formatter);
-                } catch (NumberFormatException e) {
-                    endTimeString = "";
-                    Log.v("calendar", "Could not parse end time due to error in event \"" + title + "\": " + e.getMessage());
-                }
-
-                //format for sending over BLE
-                ret += title + ";" + description + ";" + /*Start date removed for the time being*/ ";" + startTimeString + ";" + endTimeString + ";" + location + ";\n";
-                Log.v("calendar", "Found Event: " + title + ";" + description + ";" + ";" + startTimeString + ";" + endTimeString + ";" + location + ";\n");
-            } while (cur.moveToNext());
+                mapper.map(cur.getLong(eventIdColumn), cur.getLong(beginColumn),
+                        cur.getString(titleColumn), cur.getString(descriptionColumn),
+                        cur.getString(dtStartColumn), cur.getString(endColumn),
+                        cur.getString(locationColumn), sink);
+                mapped++;
+            } while (mapped < count && cur.moveToNext());
         }
-
-        return ret;
+        if (mapper.getParseErrors() > 0) {
+            Log.v("calendar", "Could not parse " + mapper.getParseErrors() + " event start/end times");
+        }
+        return mapped;
     }
 
+    private static final String[] INSTANCE_PROJECTION = new String[]{
+            CalendarContract.Instances.EVENT_ID,
+            CalendarContract.Instances.BEGIN,
+            CalendarContract.Instances.TITLE,
+            CalendarContract.Instances.DESCRIPTION,
+            CalendarContract.Instances.END,
+            CalendarContract.Instances.DTSTART,
+            CalendarContract.Instances.DTEND,
+            CalendarContract.Instances.EVENT_LOCATION
+    };
 }
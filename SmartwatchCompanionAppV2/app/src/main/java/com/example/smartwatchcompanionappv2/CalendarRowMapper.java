@@ -0,0 +1,74 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Turns raw calendar instance rows into {@link EventSink} calls. The time formatter and
+ * zone are resolved once per query rather than once per row, and nothing here touches
+ * Android types so the mapping can be exercised on the JVM.
+ */
+public class CalendarRowMapper {
+
+    //receives one event at a time as it is read from the calendar provider, key identifies the
+    //event instance ("eventId:begin") so recurring events get one key per occurrence and startDate
+    //is the DATE_PATTERN day the instance begins on
+    public interface EventSink {
+        void onEvent(String key, String startDate, String title, String description, String startTime, String endTime, String location);
+    }
+
+    public static final String TIME_PATTERN = "hh:mma";
+    public static final String DATE_PATTERN = "yyyy-MM-dd";
+
+    private final DateTimeFormatter formatter;
+    private final DateTimeFormatter dateFormatter;
+    private final StringBuilder keyBuilder = new StringBuilder();
+    private int parseErrors = 0;
+
+    public CalendarRowMapper(ZoneId zone) {
+        this.formatter = DateTimeFormatter.ofPattern(TIME_PATTERN).withZone(zone);
+        this.dateFormatter = DateTimeFormatter.ofPattern(DATE_PATTERN).withZone(zone);
+    }
+
+    //maps a single row, dtStart and end are the raw millisecond columns as strings
+    public void map(long eventId, long begin, String title, String description, String dtStart, String end,
+                    String location, EventSink sink) {
+        keyBuilder.setLength(0);
+        String key = keyBuilder.append(eventId).append(':').append(begin).toString();
+        String startDate = dateFormatter.format(Instant.ofEpochMilli(begin));
+        sink.onEvent(key, startDate, clean(title), clean(description), formatTime(dtStart), formatTime(end), clean(location));
+    }
+
+    //appends one event in the "title;description;startDate;startTime;endTime;eventLocation;" text format
+    public static StringBuilder appendRecord(StringBuilder target, String title, String description, String startDate,
+                                             String startTime, String endTime, String location) {
+        return target.append(title).append(';').append(description).append(';').append(startDate).append(';')
+                .append(startTime).append(';').append(endTime).append(';')
+                .append(location).append(";\n");
+    }
+
+    //number of start/end values that could not be parsed since this mapper was created
+    public int getParseErrors() {
+        return parseErrors;
+    }
+
+    //converts calendar time from milliseconds since epoch to human readable time, "" if unparseable
+    String formatTime(String millis) {
+        if (millis == null) {
+            parseErrors++;
+            return "";
+        }
+        try {
+            return formatter.format(Instant.ofEpochSecond(Long.parseLong(millis.replace("\n", " ")) / 1000));
+        } catch (NumberFormatException e) {
+            parseErrors++;
+            return "";
+        }
+    }
+
+    //the provider returns null for unset columns, the record format has no way to tell those apart from ""
+    private static String clean(String value) {
+        return value != null ? value.replace("\n", " ") : "";
+    }
+}
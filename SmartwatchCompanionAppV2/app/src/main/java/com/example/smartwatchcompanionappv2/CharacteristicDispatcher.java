@@ -0,0 +1,74 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Routes characteristic values to the handler registered for that characteristic.
+ * Lookups go straight through the UUID's hash, so a notification is dispatched without
+ * turning its UUID into a String first.
+ * <p>
+ * The registered UUIDs double as the list of characteristics the app expects the watch
+ * to offer, {@link #missing} reports the ones a discovered service table lacks so a
+ * UUID mismatch between app and firmware shows up as soon as the watch connects.
+ */
+public class CharacteristicDispatcher {
+
+    public interface Handler {
+        void onValue(byte[] value);
+    }
+
+    private final Map<UUID, Handler> handlers = new HashMap<>();
+    private final Map<UUID, Boolean> required = new HashMap<>();
+    private long unhandled = 0;
+
+    /**
+     * Registers the handler for a characteristic; a required characteristic is reported
+     * by {@link #missing} when the watch does not have it. Registering a UUID twice throws.
+     */
+    public synchronized CharacteristicDispatcher register(UUID uuid, boolean isRequired, Handler handler) {
+        if (handlers.containsKey(uuid)) {
+            throw new IllegalStateException("Handler for " + uuid + " already registered");
+        }
+        handlers.put(uuid, handler);
+        required.put(uuid, isRequired);
+        return this;
+    }
+
+    //hands the value to the registered handler, returns false if there is none
+    public boolean dispatch(UUID uuid, byte[] value) {
+        Handler handler;
+        synchronized (this) {
+            handler = handlers.get(uuid);
+            if (handler == null) {
+                unhandled++;
+                return false;
+            }
+        }
+        handler.onValue(value);
+        return true;
+    }
+
+    public synchronized boolean isRegistered(UUID uuid) {
+        return handlers.containsKey(uuid);
+    }
+
+    //the required characteristics that are not among the offered ones, empty if everything is there
+    public synchronized List<UUID> missing(Collection<UUID> offered) {
+        List<UUID> result = new ArrayList<>();
+        for (Map.Entry<UUID, Boolean> entry : required.entrySet()) {
+            if (entry.getValue() && !offered.contains(entry.getKey())) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    public synchronized long getUnhandledCount() {
+        return unhandled;
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen while scanning, keyed by address so every advertisement is an O(1)
+ * lookup. Each record tracks the last and smoothed RSSI, when the device was last
+ * seen and how many advertisements it sent; devices that stop advertising age out
+ * after {@link #STALE_AFTER_MS}.
+ * <p>
+ * Generic over the device type so it does not depend on BluetoothDevice. Timestamps
+ * are passed in by the caller (elapsedRealtime on the phone).
+ */
+public class DeviceRegistry<T> {
+    public static final long STALE_AFTER_MS = 30000;
+    //weight of a new sample in the smoothed RSSI, low enough to ride out single fading dips
+    public static final double RSSI_SMOOTHING = 0.25;
+
+    public static final class Record<T> {
+        public final String address;
+        public final T device;
+        public final long firstSeen;
+        private int lastRssi;
+        private double smoothedRssi;
+        private long lastSeen;
+        private long advertisementCount;
+
+        Record(String address, T device, int rssi, long now) {
+            this.address = address;
+            this.device = device;
+            this.firstSeen = now;
+            this.lastRssi = rssi;
+            this.smoothedRssi = rssi;
+            this.lastSeen = now;
+            this.advertisementCount = 1;
+        }
+
+        public int getLastRssi() {
+            return lastRssi;
+        }
+
+        public int getSmoothedRssi() {
+            return (int) Math.round(smoothedRssi);
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public long getAdvertisementCount() {
+            return advertisementCount;
+        }
+
+        @Override
+        public String toString() {
+            return address + " rssi=" + lastRssi + " smoothed=" + getSmoothedRssi() + " count=" + advertisementCount;
+        }
+    }
+
+    private final Map<String, Record<T>> records = new HashMap<>();
+    private final long staleAfterMs;
+    private boolean changed = false;
+
+    public DeviceRegistry() {
+        this(STALE_AFTER_MS);
+    }
+
+    public DeviceRegistry(long staleAfterMs) {
+        this.staleAfterMs = staleAfterMs;
+    }
+
+    /**
+     * Records one advertisement, returns true if the device was not known yet.
+     */
+    public synchronized boolean onAdvertisement(String address, T device, int rssi, long now) {
+        Record<T> record = records.get(address);
+        if (record == null) {
+            records.put(address, new Record<>(address, device, rssi, now));
+            changed = true;
+            return true;
+        }
+        record.lastRssi = rssi;
+        record.smoothedRssi += RSSI_SMOOTHING * (rssi - record.smoothedRssi);
+        record.lastSeen = now;
+        record.advertisementCount++;
+        return false;
+    }
+
+    //drops every device not seen for staleAfterMs, returns how many were removed
+    public synchronized int ageOut(long now) {
+        int removed = 0;
+        for (Iterator<Record<T>> it = records.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastSeen > staleAfterMs) {
+                it.remove();
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            changed = true;
+        }
+        return removed;
+    }
+
+    public synchronized Record<T> get(String address) {
+        return records.get(address);
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    public synchronized void clear() {
+        changed |= !records.isEmpty();
+        records.clear();
+    }
+
+    //true if devices were added or removed since the last call, used to batch UI updates
+    public synchronized boolean takeChanged() {
+        boolean result = changed;
+        changed = false;
+        return result;
+    }
+
+    //copy of the current records, strongest smoothed signal first
+    public synchronized List<Record<T>> snapshot() {
+        List<Record<T>> list = new ArrayList<>(records.values());
+        Collections.sort(list, (a, b) -> Double.compare(b.smoothedRssi, a.smoothedRssi));
+        return list;
+    }
+
+    //the devices of snapshot(), in the same order
+    public List<T> devices() {
+        List<T> devices = new ArrayList<>();
+        for (Record<T> record : snapshot()) {
+            devices.add(record.device);
+        }
+        return devices;
+    }
+}
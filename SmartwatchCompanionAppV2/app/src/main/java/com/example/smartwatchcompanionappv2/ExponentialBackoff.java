@@ -0,0 +1,43 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with "equal jitter": attempt n waits between half and all of
+ * min(max, base * 2^n). The random half keeps a phone and watch that lost the link at
+ * the same moment from retrying in lockstep, the fixed half keeps the delay from
+ * collapsing to zero.
+ */
+public class ExponentialBackoff {
+    private final long baseMs;
+    private final long maxMs;
+    private final Random random;
+    private int attempt = 0;
+
+    public ExponentialBackoff(long baseMs, long maxMs) {
+        this(baseMs, maxMs, new Random());
+    }
+
+    public ExponentialBackoff(long baseMs, long maxMs, Random random) {
+        this.baseMs = baseMs;
+        this.maxMs = maxMs;
+        this.random = random;
+    }
+
+    //delay before the next attempt, every call counts as one attempt
+    public synchronized long nextDelayMs() {
+        // capped shift so long outages cannot overflow
+        long ceiling = Math.min(maxMs, baseMs << Math.min(attempt, 30));
+        attempt++;
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    public synchronized int getAttempt() {
+        return attempt;
+    }
+
+    public synchronized void reset() {
+        attempt = 0;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolved characteristic references per watch address, so a reconnect on the same
+ * {@link BluetoothGatt} client can skip service discovery and the UUID lookups that
+ * follow it. Android drops a client's service table when the client is closed, which
+ * is why an entry is only handed out for the client it was resolved on; BLEGATT keeps
+ * that client for reconnects (gatt.connect()) for as long as it can.
+ * <p>
+ * Entries are dropped when the watch signals that its GATT table changed
+ * (onServiceChanged) and when subscribing through cached references fails, in both
+ * cases BLEGATT falls back to service discovery.
+ */
+public class GattCache {
+
+    public static final class Entry {
+        public final BluetoothGatt gatt;
+        public final BluetoothGattCharacteristic command;
+        public final BluetoothGattCharacteristic notificationUpdate;
+
+        Entry(BluetoothGatt gatt, BluetoothGattCharacteristic command, BluetoothGattCharacteristic notificationUpdate) {
+            this.gatt = gatt;
+            this.command = command;
+            this.notificationUpdate = notificationUpdate;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    public synchronized void put(String address, BluetoothGatt gatt, BluetoothGattCharacteristic command,
+                                 BluetoothGattCharacteristic notificationUpdate) {
+        entries.put(address, new Entry(gatt, command, notificationUpdate));
+    }
+
+    //the cached references for this address, or null if they were resolved on another client
+    public synchronized Entry get(String address, BluetoothGatt gatt) {
+        Entry entry = entries.get(address);
+        if (entry == null || entry.gatt != gatt) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    //false if there was no entry for address
+    public synchronized boolean invalidate(String address) {
+        if (entries.remove(address) == null) {
+            return false;
+        }
+        invalidations++;
+        return true;
+    }
+
+    public synchronized String getStats() {
+        return "hits=" + hits + " misses=" + misses + " invalidations=" + invalidations;
+    }
+}
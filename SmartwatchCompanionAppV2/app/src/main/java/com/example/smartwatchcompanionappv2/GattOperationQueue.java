@@ -0,0 +1,248 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serializes GATT operations for a single connection. Android only allows one
+ * outstanding read/write/descriptor operation per BluetoothGatt and silently drops
+ * anything issued while another is in flight, so every operation is queued here and
+ * the next one is dispatched as soon as the callback for the previous one arrives.
+ * After a timeout the queue waits up to another timeout for the late callback before
+ * moving on, a callback later than that can still be taken for the next operation's.
+ * <p>
+ * All queue state is owned by the handler's looper. {@link #enqueue} and
+ * {@link #complete} may be called from any thread (GATT callbacks arrive on binder
+ * threads), they simply post to the handler.
+ */
+public class GattOperationQueue {
+    private static final String TAG = "GattOperationQueue";
+
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+    //statuses reported to a Listener when the operation never got a GATT callback
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_REFUSED = -2;
+
+    /**
+     * A single GATT operation. {@link #execute} starts the operation and returns
+     * false if the stack refused it, in which case the queue moves straight on.
+     */
+    public interface Operation {
+        boolean execute(BluetoothGatt gatt);
+    }
+
+    /**
+     * Notified on the queue's looper once an operation has finished, with the GATT
+     * status from its callback or {@link #STATUS_TIMEOUT}/{@link #STATUS_REFUSED}.
+     */
+    public interface Listener {
+        void onFinished(int status);
+    }
+
+    private static final class PendingOperation {
+        final String name;
+        final Operation operation;
+        final long timeoutMs;
+        final Listener listener;
+        final long enqueuedAt;
+        long startedAt;
+
+        PendingOperation(String name, Operation operation, long timeoutMs, Listener listener) {
+            this.name = name;
+            this.operation = operation;
+            this.timeoutMs = timeoutMs;
+            this.listener = listener;
+            this.enqueuedAt = SystemClock.elapsedRealtime();
+        }
+
+        void finish(int status) {
+            if (listener != null) {
+                listener.onFinished(status);
+            }
+        }
+    }
+
+    private final Handler handler;
+    private final ArrayDeque<PendingOperation> queue = new ArrayDeque<>();
+    private final Runnable timeoutRunnable = this::onTimeout;
+    private final Runnable lateRunnable = this::onLateCallbackMissed;
+    private final OperationSequence sequence = new OperationSequence();
+    private BluetoothGatt gatt;
+    private PendingOperation current;
+
+    //backpressure stats, only touched on the handler thread
+    private long enqueuedCount = 0;
+    private long completedCount = 0;
+    private long failedCount = 0;
+    private long timeoutCount = 0;
+    private int maxDepth = 0;
+    private long totalWaitMs = 0;
+    private long totalRunMs = 0;
+
+    public GattOperationQueue(Looper looper) {
+        this.handler = new Handler(looper);
+    }
+
+    public void setGatt(BluetoothGatt gatt) {
+        handler.post(() -> {
+            this.gatt = gatt;
+            if (gatt == null) {
+                clearInternal();
+            } else {
+                dispatchNext();
+            }
+        });
+    }
+
+    public void enqueue(String name, Operation operation) {
+        enqueue(name, DEFAULT_TIMEOUT_MS, operation);
+    }
+
+    public void enqueue(String name, long timeoutMs, Operation operation) {
+        enqueue(name, timeoutMs, operation, null);
+    }
+
+    public void enqueue(String name, long timeoutMs, Operation operation, Listener listener) {
+        final PendingOperation pending = new PendingOperation(name, operation, timeoutMs, listener);
+        handler.post(() -> {
+            queue.add(pending);
+            enqueuedCount++;
+            maxDepth = Math.max(maxDepth, queue.size() + (current != null ? 1 : 0));
+            dispatchNext();
+        });
+    }
+
+    /**
+     * Called from the GATT callback matching the operation currently in flight. The
+     * next queued operation is dispatched immediately. A callback that does not match it
+     * is dropped, see {@link OperationSequence} for how late ones are told apart.
+     */
+    public void complete(String name, int status) {
+        final long arrival = sequence.arrival();
+        handler.post(() -> {
+            if (current == null) {
+                if (sequence.absorbLate(name)) {
+                    Log.i(TAG, "Late completion for timed out " + name + " with status " + status + ", resuming");
+                    handler.removeCallbacks(lateRunnable);
+                    dispatchNext();
+                } else {
+                    Log.w(TAG, "Completion for " + name + " with no operation in flight");
+                }
+                return;
+            }
+            if (!sequence.matches(name, arrival)) {
+                Log.w(TAG, "Dropping late completion for " + name + " while " + current.name + " is in flight");
+                return;
+            }
+            handler.removeCallbacks(timeoutRunnable);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                completedCount++;
+            } else {
+                failedCount++;
+                Log.w(TAG, current.name + " completed with status " + status);
+            }
+            long runMs = SystemClock.elapsedRealtime() - current.startedAt;
+            totalRunMs += runMs;
+            Metrics.GATT_OPERATION_MS.record(runMs);
+            PendingOperation finished = current;
+            current = null;
+            finished.finish(status);
+            dispatchNext();
+        });
+    }
+
+    public void clear() {
+        handler.post(this::clearInternal);
+    }
+
+    public int getDepth() {
+        return queue.size() + (current != null ? 1 : 0);
+    }
+
+    public String getStats() {
+        long finished = completedCount + failedCount + timeoutCount;
+        return "enqueued=" + enqueuedCount
+                + " completed=" + completedCount
+                + " failed=" + failedCount
+                + " timeouts=" + timeoutCount
+                + " depth=" + getDepth()
+                + " maxDepth=" + maxDepth
+                + " avgWaitMs=" + (finished > 0 ? totalWaitMs / finished : 0)
+                + " avgRunMs=" + (finished > 0 ? totalRunMs / finished : 0);
+    }
+
+    private void dispatchNext() {
+        while (current == null && !sequence.isAwaitingLate() && gatt != null && !queue.isEmpty()) {
+            PendingOperation next = queue.poll();
+            next.startedAt = SystemClock.elapsedRealtime();
+            totalWaitMs += next.startedAt - next.enqueuedAt;
+            current = next;
+            sequence.start(next.name);
+
+            boolean started;
+            try {
+                started = next.operation.execute(gatt);
+            } catch (SecurityException e) {
+                Log.e(TAG, "Missing permission for " + next.name, e);
+                started = false;
+            }
+
+            if (started) {
+                handler.postDelayed(timeoutRunnable, next.timeoutMs);
+            } else {
+                Log.w(TAG, "Stack refused " + next.name + ", moving on");
+                failedCount++;
+                current = null;
+                next.finish(STATUS_REFUSED);
+            }
+        }
+    }
+
+    private void onTimeout() {
+        if (current == null) {
+            return;
+        }
+        Log.w(TAG, current.name + " timed out after " + current.timeoutMs + "ms");
+        timeoutCount++;
+        totalRunMs += current.timeoutMs;
+        Metrics.GATT_OPERATION_MS.record(current.timeoutMs);
+        PendingOperation finished = current;
+        current = null;
+        //the stack may still answer it, hold the next operation for another timeout so that
+        //answer cannot be taken for the next one's
+        sequence.timedOut();
+        handler.postDelayed(lateRunnable, finished.timeoutMs);
+        finished.finish(STATUS_TIMEOUT);
+        dispatchNext();
+    }
+
+    private void onLateCallbackMissed() {
+        if (sequence.isAwaitingLate()) {
+            Log.w(TAG, "No late completion arrived, resuming");
+            sequence.giveUpOnLate();
+            dispatchNext();
+        }
+    }
+
+    private void clearInternal() {
+        handler.removeCallbacks(timeoutRunnable);
+        handler.removeCallbacks(lateRunnable);
+        sequence.giveUpOnLate();
+        if (current != null || !queue.isEmpty()) {
+            Log.i(TAG, "Dropping " + getDepth() + " pending GATT operations");
+        }
+        if (current != null) {
+            current.finish(STATUS_TIMEOUT);
+        }
+        for (PendingOperation pending : queue) {
+            pending.finish(STATUS_REFUSED);
+        }
+        queue.clear();
+        current = null;
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link BleTransport} over the current BluetoothGatt connection. Every operation goes
+ * through the connection's {@link GattOperationQueue}; BLEGATT feeds in the resolved
+ * characteristics, the negotiated MTU and the values from onCharacteristicChanged.
+ */
+public class GattTransport implements BleTransport {
+    private final GattOperationQueue queue;
+    private final Map<UUID, BluetoothGattCharacteristic> characteristics = new ConcurrentHashMap<>();
+    private volatile int mtu = BLEGATT.DEFAULT_MTU;
+    private volatile Receiver receiver;
+
+    public GattTransport(GattOperationQueue queue) {
+        this.queue = queue;
+    }
+
+    public void putCharacteristic(BluetoothGattCharacteristic characteristic) {
+        characteristics.put(characteristic.getUuid(), characteristic);
+    }
+
+    public void clearCharacteristics() {
+        characteristics.clear();
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    //the connection is gone, the next one starts from scratch
+    public void reset() {
+        characteristics.clear();
+        mtu = BLEGATT.DEFAULT_MTU;
+    }
+
+    //called from onCharacteristicChanged
+    public void onValue(UUID characteristic, byte[] value) {
+        Receiver current = receiver;
+        if (current != null) {
+            current.onValue(characteristic, value);
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public boolean hasCharacteristic(UUID characteristic) {
+        return characteristics.containsKey(characteristic);
+    }
+
+    @Override
+    public boolean supportsWriteWithoutResponse(UUID characteristic) {
+        BluetoothGattCharacteristic c = characteristics.get(characteristic);
+        return c != null && (c.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+
+    @Override
+    public void write(UUID characteristic, byte[] value, boolean withResponse, Completion done) {
+        final BluetoothGattCharacteristic c = characteristics.get(characteristic);
+        if (c == null) {
+            if (done != null) {
+                done.onComplete(GattOperationQueue.STATUS_REFUSED);
+            }
+            return;
+        }
+        final int writeType = withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        queue.enqueue("writeCharacteristic", GattOperationQueue.DEFAULT_TIMEOUT_MS, gatt -> {
+            c.setValue(value);
+            c.setWriteType(writeType);
+            return gatt.writeCharacteristic(c);
+        }, done != null ? done::onComplete : null);
+    }
+
+    @Override
+    public void read(UUID characteristic, Completion done) {
+        final BluetoothGattCharacteristic c = characteristics.get(characteristic);
+        if (c == null) {
+            if (done != null) {
+                done.onComplete(GattOperationQueue.STATUS_REFUSED);
+            }
+            return;
+        }
+        queue.enqueue("readCharacteristic", GattOperationQueue.DEFAULT_TIMEOUT_MS,
+                gatt -> gatt.readCharacteristic(c), done != null ? done::onComplete : null);
+    }
+}
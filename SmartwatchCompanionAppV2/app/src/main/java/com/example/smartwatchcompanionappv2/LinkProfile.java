@@ -0,0 +1,21 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+//named connection parameter and PHY combinations for the link to the watch
+//BULK_SYNC trades power for throughput during notification/calendar dumps, IDLE keeps the
+//watch radio asleep as much as possible between syncs
+public enum LinkProfile {
+    BULK_SYNC(BluetoothGatt.CONNECTION_PRIORITY_HIGH, BluetoothDevice.PHY_LE_2M_MASK),
+    BALANCED(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, BluetoothDevice.PHY_LE_1M_MASK),
+    IDLE(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, BluetoothDevice.PHY_LE_1M_MASK);
+
+    public final int connectionPriority;
+    public final int phyMask;
+
+    LinkProfile(int connectionPriority, int phyMask) {
+        this.connectionPriority = connectionPriority;
+        this.phyMask = phyMask;
+    }
+}
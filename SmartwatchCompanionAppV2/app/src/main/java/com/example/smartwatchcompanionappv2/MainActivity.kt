@@ -6,6 +6,7 @@ import android.content.pm.PackageManager
 import android.os.Build
 import android.os.Bundle
 import android.util.Log
+import android.widget.Toast
 import androidx.activity.ComponentActivity
 import androidx.activity.compose.setContent
 import androidx.activity.enableEdgeToEdge
@@ -13,13 +14,16 @@ import androidx.activity.result.contract.ActivityResultContracts
 import androidx.compose.foundation.layout.fillMaxSize
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Surface
+import androidx.compose.runtime.LaunchedEffect
 import androidx.compose.runtime.getValue // Added for 'by' delegate
 import androidx.compose.runtime.mutableStateOf // Added for mutableStateOf
 import androidx.compose.runtime.remember // Added for remember
 import androidx.compose.runtime.derivedStateOf // Added for deriving the names list
+import androidx.compose.runtime.setValue
 import androidx.compose.ui.Modifier
 import androidx.core.content.ContextCompat
 import com.example.smartwatchcompanionappv2.ui.theme.AndroidCompanionAppForBLEDevicesTheme
+import kotlinx.coroutines.delay
 
 class MainActivity : ComponentActivity() {
 
@@ -32,6 +36,9 @@ class MainActivity : ComponentActivity() {
             }
         }
 
+    // set on the main thread by updateDeviceList, the device list on screen follows it
+    private var scannedDevicesSource by mutableStateOf(listOf<BluetoothDevice>())
+
     override fun onCreate(savedInstanceState: Bundle?) {
         enableEdgeToEdge()
         super.onCreate(savedInstanceState)
@@ -51,10 +58,18 @@ class MainActivity : ComponentActivity() {
                     modifier = Modifier.fillMaxSize(),
                     color = MaterialTheme.colorScheme.background
                 ) {
-                    val scannedDevicesSource by remember { mutableStateOf(listOf<BluetoothDevice>()) } 
                     val connectionStatus by remember { mutableStateOf("Idle") }
                     val isScanning by remember { mutableStateOf(false) }
                     val connectedDeviceName by remember { mutableStateOf<String?>(null) }
+                    var metricsSummary by remember { mutableStateOf(Metrics.summary()) }
+
+                    // the metrics are plain counters, polling them while the screen is up is cheaper than pushing every update
+                    LaunchedEffect(Unit) {
+                        while (true) {
+                            metricsSummary = Metrics.summary()
+                            delay(METRICS_REFRESH_MS)
+                        }
+                    }
 
                     val scannedDeviceDisplayNames by remember {
                         derivedStateOf {
@@ -79,10 +94,21 @@ class MainActivity : ComponentActivity() {
                             // TODO: Implement disconnect logic
                         },
                         onStartScanClick = {
-                            // TODO: Implement start scan logic
+                            WatchScanner.get().start(this@MainActivity, ScanProfile.INTERACTIVE)
                         },
                         isScanning = isScanning,
-                        connectedDeviceName = connectedDeviceName
+                        connectedDeviceName = connectedDeviceName,
+                        metricsSummary = metricsSummary,
+                        onDumpMetricsClick = {
+                            BleWorker.get().post("dumpDiagnostics") {
+                                val dir = BLEService.dumpDiagnostics(applicationContext)
+                                runOnUiThread {
+                                    Toast.makeText(this@MainActivity,
+                                        if (dir != null) "Metrics and trace saved to ${dir.path}" else "Could not save diagnostics",
+                                        Toast.LENGTH_LONG).show()
+                                }
+                            }
+                        }
                     )
                 }
             }
@@ -98,25 +124,10 @@ class MainActivity : ComponentActivity() {
         Log.d("MainActivity", "Instance.updateScanStatus called")
     }
 
-    fun updateDeviceList(device: BluetoothDevice?) {
-        if (device != null) {
-            val deviceNameToLog = try {
-                device.name ?: "Unknown"
-            } catch (e: SecurityException) {
-                Log.e("MainActivity", "Missing BLUETOOTH_CONNECT permission for device.name in updateDeviceList", e)
-                "Permission Denied"
-            }
-            Log.d("MainActivity", "Instance.updateDeviceList called with device: $deviceNameToLog")
-            // Example: Update scannedDevicesSource
-            // val currentList = scannedDevicesSource.toMutableList() 
-            // if (!currentList.any { it.address == device.address }) {
-            //     currentList.add(device)
-            //     scannedDevicesSource = currentList 
-            // }
-        } else {
-            Log.d("MainActivity", "Instance.updateDeviceList called with null device to clear list?")
-            // scannedDevicesSource = listOf() 
-        }
+    // Batched update from BLEScanReceiver, the whole current device list strongest signal first
+    fun updateDeviceList(devices: List<BluetoothDevice>) {
+        Log.d("MainActivity", "Instance.updateDeviceList called with ${devices.size} devices")
+        scannedDevicesSource = devices
     }
 
     companion object {
@@ -129,9 +140,12 @@ class MainActivity : ComponentActivity() {
         var currentDevice: BluetoothDevice? = null
 
         // @JvmStatic is removed from const vals as it's redundant
-        const val SERVICE_UUID = "00001809-0000-1000-8000-00805f9b34fb"
-        const val COMMAND_UUID = "00002a37-0000-1000-8000-00805f9b34fb"
-        const val CHARACTERISTIC_NOTIFICATION_UPDATE = "00002902-0000-1000-8000-00805f9b34fb"
+        // the watch UUIDs live in WatchUuids, these stay for callers that want the strings
+        const val SERVICE_UUID = WatchUuids.SERVICE
+        const val COMMAND_UUID = WatchUuids.COMMAND
+        const val CHARACTERISTIC_NOTIFICATION_UPDATE = WatchUuids.NOTIFICATION_UPDATE
+
+        private const val METRICS_REFRESH_MS = 1000L
 
         @JvmStatic 
         fun updateStatusText() {
@@ -16,6 +16,7 @@ import androidx.compose.material3.ExperimentalMaterial3Api
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Scaffold
 import androidx.compose.material3.Text
+import androidx.compose.material3.TextButton
 import androidx.compose.material3.TopAppBar
 import androidx.compose.runtime.Composable
 import androidx.compose.ui.Alignment
@@ -33,7 +34,9 @@ fun MainScreen(
     onDisconnectClick: () -> Unit,
     onStartScanClick: () -> Unit,
     isScanning: Boolean,
-    connectedDeviceName: String?
+    connectedDeviceName: String?,
+    metricsSummary: String = "", // Metrics.summary(), hidden while empty
+    onDumpMetricsClick: () -> Unit = {}
 ) {
     Scaffold(
         topBar = {
@@ -56,6 +59,23 @@ fun MainScreen(
                 style = MaterialTheme.typography.titleMedium
             )
 
+            if (metricsSummary.isNotEmpty()) {
+                Row(
+                    modifier = Modifier.fillMaxWidth(),
+                    horizontalArrangement = Arrangement.SpaceBetween,
+                    verticalAlignment = Alignment.CenterVertically
+                ) {
+                    Text(
+                        text = metricsSummary,
+                        style = MaterialTheme.typography.bodySmall,
+                        modifier = Modifier.weight(1f)
+                    )
+                    TextButton(onClick = onDumpMetricsClick) {
+                        Text("Save")
+                    }
+                }
+            }
+
             if (connectedDeviceName != null) {
                 Text("Connected to: $connectedDeviceName")
                 Button(onClick = onDisconnectClick) {
@@ -148,7 +168,8 @@ fun MainScreenPreviewConnected() {
             onDisconnectClick = {},
             onStartScanClick = {},
             isScanning = false,
-            connectedDeviceName = "TestDevice Beta"
+            connectedDeviceName = "TestDevice Beta",
+            metricsSummary = "sync p50 180ms p95 420ms, 36 KB sent, reconnect p50 2300ms"
         )
     }
 }
\ No newline at end of file
@@ -1,42 +1,168 @@
 package com.example.smartwatchcompanionappv2;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
 
 //basically just splits up a string and gives one part of it at a time
 //good for use in the BLEGatt class
+//the message is encoded to UTF-8 once into a pooled buffer and chunks are handed out as views
+//over that buffer, a chunk never ends in the middle of a multi-byte character
 public class MessageClipper {
-    private String message = "";
+    //every ATT write carries a 1 byte opcode and 2 byte handle ahead of the payload
+    public static final int ATT_HEADER_SIZE = 3;
+    //the longest UTF-8 sequence, chunks must be at least this big to always make progress
+    public static final int MIN_CLIP_SIZE = 4;
+
+    private static final int DEFAULT_CLIP_SIZE = 16;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+    private static final ThreadLocal<CharsetEncoder> encoder =
+            ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private final String message;
+    //binary payloads are wrapped rather than pooled and may be cut anywhere
+    private final boolean text;
+    private ByteBuffer buffer;
+    private ByteBuffer chunk;
+    private int length;
     private int position = 0;
-    private int clipSize = 16;
+    private final int clipSize;
 
 
     public MessageClipper(String message) {
-        this.message = message;
-        clipSize = 16;
+        this(message, DEFAULT_CLIP_SIZE);
     }
 
     public MessageClipper(String message, int clipSize) {
-        this.clipSize = clipSize;
         this.message = message;
+        this.text = true;
+        this.clipSize = Math.max(MIN_CLIP_SIZE, clipSize);
+        this.buffer = encode(message);
+        this.length = buffer.limit();
+        this.chunk = buffer.duplicate();
+    }
+
+    public MessageClipper(byte[] payload, int clipSize) {
+        this.message = null;
+        this.text = false;
+        this.clipSize = Math.max(MIN_CLIP_SIZE, clipSize);
+        this.buffer = ByteBuffer.wrap(payload);
+        this.length = payload.length;
+        this.chunk = buffer.duplicate();
+    }
+
+    public static MessageClipper forMtu(byte[] payload, int mtu) {
+        return new MessageClipper(payload, chunkSizeForMtu(mtu));
+    }
+
+    //creates a clipper whose chunks fill a single ATT write at the given MTU
+    public static MessageClipper forMtu(String message, int mtu) {
+        return new MessageClipper(message, chunkSizeForMtu(mtu));
+    }
+
+    public static int chunkSizeForMtu(int mtu) {
+        return Math.max(MIN_CLIP_SIZE, mtu - ATT_HEADER_SIZE);
     }
 
     public boolean messageComplete(){
-        return position == message.length();
+        return position == length;
     }
 
     public String getFullMessage(){
         return message;
     }
 
+    //size of the encoded message in bytes
+    public int getLength() {
+        return length;
+    }
 
-    public String getNextMessage() {
-        String ret = "";
-        if (position + clipSize < message.length()) {
-            ret = message.substring(position, position + clipSize);
-            position += clipSize;
-        } else if (position + clipSize > message.length()) {
-            ret = message.substring(position);
-            position = message.length();
+    public int getClipSize() {
+        return clipSize;
+    }
+
+    //the buffer the chunks are views over, lets tests see whether it came from the pool
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    //returns the next chunk as a view over the shared buffer, the view is reused by the next call
+    //so the caller has to copy the bytes out before asking for another chunk
+    public ByteBuffer nextChunk() {
+        int end = Math.min(position + clipSize, length);
+        if (text && end < length) {
+            //back up to the first byte of the character we would otherwise split
+            while (end > position && (buffer.get(end) & 0xC0) == 0x80) {
+                end--;
+            }
         }
+        chunk.limit(end);
+        chunk.position(position);
+        position = end;
+        return chunk;
+    }
+
+    //copies the next chunk into a new array, for APIs that need to own their value
+    public byte[] getNextBytes() {
+        ByteBuffer next = nextChunk();
+        byte[] ret = new byte[next.remaining()];
+        next.get(ret);
         return ret;
     }
+
+    public String getNextMessage() {
+        ByteBuffer next = nextChunk();
+        return new String(next.array(), next.arrayOffset() + next.position(), next.remaining(), StandardCharsets.UTF_8);
+    }
+
+    //returns the backing buffer to the pool, the clipper must not be used afterwards
+    public void release() {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (bufferPool) {
+            if (text && bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.push(buffer);
+            }
+        }
+        buffer = null;
+        chunk = null;
+        length = 0;
+        position = 0;
+    }
+
+    private static ByteBuffer encode(String message) {
+        //UTF-8 never needs more than 3 bytes per UTF-16 char
+        int maxBytes = message.length() * 3;
+        ByteBuffer target = null;
+        synchronized (bufferPool) {
+            for (ByteBuffer pooled : bufferPool) {
+                if (pooled.capacity() >= maxBytes) {
+                    target = pooled;
+                    break;
+                }
+            }
+            if (target != null) {
+                bufferPool.remove(target);
+            }
+        }
+        if (target == null) {
+            target = ByteBuffer.allocate(Math.max(maxBytes, 64));
+        }
+        target.clear();
+
+        CharsetEncoder utf8 = encoder.get();
+        utf8.reset();
+        utf8.encode(CharBuffer.wrap(message), target, true);
+        utf8.flush(target);
+        target.flip();
+        return target;
+    }
 }
@@ -0,0 +1,209 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide counters and histograms for the sync pipeline, so latency and throughput
+ * can be read off the phone instead of being pieced together from log lines.
+ * <p>
+ * Recording is lock-free and allocation free (LongAdder and atomic bucket arrays), it is
+ * safe to call straight from the BLE callbacks. The pipeline metrics are the constants
+ * below; {@link #summary()} is the one line shown in the app and the foreground
+ * notification, {@link #dump()} the full text written to the metrics file.
+ */
+public final class Metrics {
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    //time from a GATT operation being started to its callback (or timeout)
+    public static final Histogram GATT_OPERATION_MS = histogram("gatt.operation.ms");
+    //chunks per response sent over the command characteristic
+    public static final Histogram TRANSFER_CHUNKS = histogram("transfer.chunks");
+    //acknowledged bytes written to the watch, responses and deltas
+    public static final Counter BYTES_ON_AIR = counter("transfer.bytes");
+    //onNotificationPosted to the last chunk of its delta being acknowledged
+    public static final Histogram NOTIFICATION_SYNC_MS = histogram("notification.sync.ms");
+    public static final Histogram CALENDAR_QUERY_MS = histogram("calendar.query.ms");
+    //link lost to link back
+    public static final Histogram RECONNECT_MS = histogram("reconnect.ms");
+
+    private Metrics() {
+    }
+
+    //the counter registered under name, created on first use. Look it up once and keep it
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, Counter::new);
+    }
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, Histogram::new);
+    }
+
+    //notification sync, bytes on air and reconnect time in one line
+    public static String summary() {
+        return "sync p50 " + NOTIFICATION_SYNC_MS.percentile(0.5) + "ms p95 " + NOTIFICATION_SYNC_MS.percentile(0.95) + "ms"
+                + ", " + (BYTES_ON_AIR.get() + 512) / 1024 + " KB sent"
+                + ", reconnect p50 " + RECONNECT_MS.percentile(0.5) + "ms";
+    }
+
+    //every registered metric, one per line sorted by name
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Counter counter : new TreeMap<>(counters).values()) {
+            sb.append(counter).append('\n');
+        }
+        for (Histogram histogram : new TreeMap<>(histograms).values()) {
+            sb.append(histogram).append('\n');
+        }
+        return sb.toString();
+    }
+
+    //clears every metric, the registrations stay
+    public static void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    public static final class Counter {
+        private final String name;
+        private final LongAdder value = new LongAdder();
+
+        public Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        public void reset() {
+            value.reset();
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + get();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values in log-linear buckets: every power of two is split
+     * into {@link #SUB_BUCKETS} buckets, so a percentile is off by at most 1/8th of the value
+     * whatever its magnitude. Values below SUB_BUCKETS get a bucket each. Percentiles report
+     * the upper end of their bucket, capped at the largest value seen.
+     */
+    public static final class Histogram {
+        static final int SUB_BUCKET_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        //enough for every positive long
+        private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public Histogram(String name) {
+            this.name = name;
+        }
+
+        //negative values (a clock going backwards) count as 0
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            long seen = max.get();
+            while (value > seen && !max.compareAndSet(seen, value)) {
+                seen = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getMean() {
+            long n = count.sum();
+            return n > 0 ? sum.sum() / n : 0;
+        }
+
+        //the value below which the fraction q of the recorded values fall, 0 while empty
+        public long percentile(double q) {
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        //the largest value that lands in bucket
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return name + " count=" + getCount() + " mean=" + getMean() + " p50=" + percentile(0.5)
+                    + " p95=" + percentile(0.95) + " p99=" + percentile(0.99) + " max=" + getMax();
+        }
+    }
+}
@@ -15,14 +15,39 @@ import java.util.Objects;
 
 public class NLService extends NotificationListenerService {
 
-    final static int maxBigTextLength = 240;
+    final static int maxBigTextLength = NotificationEncoder.MAX_BIG_TEXT_LENGTH;
+    // one encoder per thread, each reuses its builder across notifications
+    private static final ThreadLocal<NotificationEncoder> encoder = ThreadLocal.withInitial(NotificationEncoder::new);
 
     public final static String NOTIFICATION_ACTION = "com.companionApp.NOTIFICATION_LISTENER_EXAMPLE";
     public final static String GET_NOTIFICATION_INTENT = "com.companionApp.NOTIFICATION_LISTENER_SERVICE_EXAMPLE";
+    // "command" extras of GET_NOTIFICATION_INTENT
+    public final static String COMMAND_LIST = "list";
+    public final static String COMMAND_CLEAR_ALL = "clearall";
+    public final static String COMMAND_LINK_LOST = "linkLost";
+    // our own foreground notification is never forwarded to the watch
+    private final static String OWN_NOTIFICATION_MARKER = "ESP32 Smartwatch Companion App";
 
     // Made TAG static and initialized with class name
     private static final String TAG = NLService.class.getSimpleName();
     private NLServiceReceiver nlservicereciver;
+    private AppNameCache.PackageChangeReceiver packageChangeReceiver;
+    // what the watch last received, so posted/removed events only send what changed
+    private final NotificationSnapshot snapshot = new NotificationSnapshot();
+    // merges bursts of updates per key so only the final state is synced, the flushed events are
+    // built into records on the BLE worker thread
+    private final NotificationCoalescer coalescer = new NotificationCoalescer(BleWorker.get().getLooper(),
+            new NotificationCoalescer.Listener() {
+                @Override
+                public void onPosted(StatusBarNotification sbn, long receivedAt) {
+                    handlePosted(sbn, receivedAt);
+                }
+
+                @Override
+                public void onRemoved(StatusBarNotification sbn, long receivedAt) {
+                    handleRemoved(sbn, receivedAt);
+                }
+            });
 
     @Override
     public void onCreate() {
@@ -32,90 +57,192 @@ public class NLService extends NotificationListenerService {
         IntentFilter filter = new IntentFilter();
         filter.addAction(GET_NOTIFICATION_INTENT);
         registerReceiver(nlservicereciver, filter, Context.RECEIVER_NOT_EXPORTED);
+        packageChangeReceiver = new AppNameCache.PackageChangeReceiver();
+        registerReceiver(packageChangeReceiver, AppNameCache.PackageChangeReceiver.createFilter(), Context.RECEIVER_EXPORTED);
     }
 
     @Override
     public void onDestroy() {
+        //send what is still buffered now, a scheduled flush would run on the worker after the service is gone
+        coalescer.flush();
+        Log.i(TAG, "Notification coalescer " + coalescer);
         super.onDestroy();
         unregisterReceiver(nlservicereciver);
+        unregisterReceiver(packageChangeReceiver);
     }
 
     @Override
     public void onNotificationPosted(StatusBarNotification sbn) {
         Log.i(TAG, "**********  onNotificationPosted");
+        coalescer.posted(sbn);
+    }
+
+    @Override
+    public void onNotificationRemoved(StatusBarNotification sbn) {
+        Log.i(TAG, "********** onNotificationRemoved");
+        coalescer.removed(sbn);
+    }
+
+    //final state of a notification after the coalescing window
+    private void handlePosted(StatusBarNotification sbn, long receivedAt) {
         Intent i = new Intent(NOTIFICATION_ACTION);
         i.putExtra("notification_status_event", "onNotificationPosted :\" + sbn.getPackageName() + \"n");
         i.putExtra("event_type", "posted");
         sendBroadcast(i);
+        String data = buildNotificationData(this, sbn);
+        if (data != null) {
+            sendDelta(snapshot.posted(sbn.getKey(), data), sbn.getKey(), data, receivedAt);
+        } else {
+            sendDelta(snapshot.removed(sbn.getKey()), sbn.getKey(), "", receivedAt);
+        }
         MainActivity.updateNotifications();
     }
 
-    @Override
-    public void onNotificationRemoved(StatusBarNotification sbn) {
-        Log.i(TAG, "********** onNotificationRemoved");
+    private void handleRemoved(StatusBarNotification sbn, long receivedAt) {
         Intent i = new Intent(NOTIFICATION_ACTION);
         i.putExtra("notification_status_event", "onNotificationRemoved :\" + sbn.getPackageName() + \"n");
         i.putExtra("event_type", "removed");
         sendBroadcast(i);
+        sendDelta(snapshot.removed(sbn.getKey()), sbn.getKey(), "", receivedAt);
         MainActivity.updateNotifications();
     }
 
+    public NotificationCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    //forwards an add/update/remove delta to BLEGATT, nothing is sent if the watch is already up to date.
+    //receivedAt rides along so BLEGATT can time the sync
+    private void sendDelta(String deltaType, String key, String data, long receivedAt) {
+        if (deltaType == null) {
+            return;
+        }
+        Intent i = new Intent(NOTIFICATION_ACTION);
+        i.setPackage(getPackageName());
+        i.putExtra("notification_delta", deltaType);
+        i.putExtra("notification_key", key);
+        i.putExtra("notification_data", data);
+        i.putExtra("notification_received_at", receivedAt);
+        sendBroadcast(i);
+    }
+
     class NLServiceReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.i("inform", "NLServiceReciever has received a broadcast");
-            if (Objects.equals(intent.getStringExtra("command"), "clearall")) {
-                NLService.this.cancelAllNotifications();
-            } else if (Objects.equals(intent.getStringExtra("command"), "list")) {
-                Log.i("inform", "Processing Request to list notifications");
-                Intent i1 = new Intent(NOTIFICATION_ACTION);
-                i1.putExtra("notification_event", "");
-                sendBroadcast(i1);
-                for (StatusBarNotification sbn : NLService.this.getActiveNotifications()) {
+            //the list build does a PackageManager lookup per notification, keep it off the main thread
+            String command = intent.getStringExtra("command");
+            if (Objects.equals(command, COMMAND_CLEAR_ALL)) {
+                BleWorker.get().post("clearAllNotifications", NLService.this::cancelAllNotifications);
+            } else if (Objects.equals(command, COMMAND_LINK_LOST)) {
+                //deltas sent from now on are dropped, stop trusting the snapshot until the next list
+                snapshot.invalidate();
+            } else if (Objects.equals(command, COMMAND_LIST)) {
+                //a list request still waiting in the queue already answers this one
+                BleWorker.get().postLatest("listNotifications", () -> listNotifications(context, intent));
+            }
+        }
+
+        private void listNotifications(Context context, Intent intent) {
+            Log.i("inform", "Processing Request to list notifications");
+            Intent i1 = new Intent(NOTIFICATION_ACTION);
+            i1.setPackage(getPackageName());
+            i1.putExtra("notification_event", "");
+            sendBroadcast(i1);
+            snapshot.clear();
+            //binary clients get the fields separately, text clients get the escaped record
+            boolean binary = WireFormat.FORMAT_BINARY.equals(intent.getStringExtra("format"));
+            for (StatusBarNotification sbn : NLService.this.getActiveNotifications()) {
+                //the record for the snapshot and the fields for binary clients come from one extraction
+                String[] raw = extractFields(context, sbn);
+                String data = encodeRecord(raw);
+                String[] fields = binary ? encodeFields(raw) : null;
+                if (data != null && (!binary || fields != null)) {
+                    snapshot.posted(sbn.getKey(), data);
                     Intent i2 = new Intent(NOTIFICATION_ACTION);
-                    try {
-                        String data = ifNotNull(getAppNameFromPkgName(context, sbn.getPackageName())) + ","
-                                + ifNotNull(sbn.getNotification().extras.getString(Notification.EXTRA_TITLE)).replace("\n", "").replace(";", ",") + ";" 
-                                + ifNotNull(sbn.getNotification().extras.getString(Notification.EXTRA_TEXT)).replace("\n", "").replace(";", ",") + ";" 
-                                + ifNotNull(sbn.getNotification().extras.getString(Notification.EXTRA_INFO_TEXT)).replace("\n", "").replace(";", ",") + ";" 
-                                + ifNotNull(sbn.getNotification().extras.getString(Notification.EXTRA_SUB_TEXT)).replace("\n", "").replace(";", ",") + ";" 
-                                + ifNotNull(sbn.getNotification().extras.getString(Notification.EXTRA_TITLE_BIG)).replace("\n", "").replace(";", ",") + ";";
-                        data = data.replaceAll("[^\\p{ASCII}]", "");
-                        try {
-                            String category = sbn.getNotification().category;
-                            if (Notification.CATEGORY_EMAIL.equals(category)) {
-                                CharSequence bigTextChars = sbn.getNotification().extras.getCharSequence("android.bigText");
-                                if (bigTextChars != null) {
-                                    data += shortenString(bigTextChars).replace("\n", "").replace(";", ",");
-                                }
-                            } else if (Notification.CATEGORY_MESSAGE.equals(category)) {
-                                data += ifNotNull(sbn.getNotification().extras.getString(Notification.EXTRA_MESSAGES));
-                            }
-                        } catch (Exception e) {
-                            Log.w(TAG, "Error processing bigText/messages for " + getAppNameFromPkgName(context, sbn.getPackageName()), e);
-                        }
-                        if (!data.contains("ESP32 Smartwatch Companion App")) {
-                            i2.putExtra("notification_event", data + "\n");
-                            sendBroadcast(i2);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Could not parse data for: " + getAppNameFromPkgName(context, sbn.getPackageName()) + " due to " + e.getMessage(), e);
+                    i2.setPackage(getPackageName());
+                    if (binary) {
+                        i2.putExtra("notification_fields", fields);
+                    } else {
+                        i2.putExtra("notification_event", data + "\n");
                     }
+                    sendBroadcast(i2);
                 }
-                Intent i3 = new Intent(NOTIFICATION_ACTION);
-                i3.putExtra("notification_event", "");
-                sendBroadcast(i3);
             }
+            Intent i3 = new Intent(NOTIFICATION_ACTION);
+            i3.setPackage(getPackageName());
+            i3.putExtra("notification_event", "");
+            sendBroadcast(i3);
         }
     }
 
-    public static String shortenString(CharSequence s) {
-        if (s == null) return "";
-        if (s.length() > maxBigTextLength) {
-            return s.toString().substring(0, maxBigTextLength) + "...";
-        } else {
-            return s.toString();
+    //builds the "appName,title;text;infoText;subText;bigTitle;extra" record for one notification,
+    //returns null if it should not be sent to the watch
+    public static String buildNotificationData(Context context, StatusBarNotification sbn) {
+        return encodeRecord(extractFields(context, sbn));
+    }
+
+    //the record for the output of extractFields, null if there is none or it is our own notification
+    private static String encodeRecord(String[] raw) {
+        if (raw == null) {
+            return null;
+        }
+        String data = encoder.get().encode(raw[0], raw[1], raw[2], raw[3], raw[4], raw[5], raw[6], raw[7]);
+        if (data.contains(OWN_NOTIFICATION_MARKER)) {
+            return null;
+        }
+        return data;
+    }
+
+    //same content as encodeRecord but as separate fields for the binary wire format
+    private static String[] encodeFields(String[] raw) {
+        if (raw == null) {
+            return null;
+        }
+        String[] fields = encoder.get().encodeFields(raw[0], raw[1], raw[2], raw[3], raw[4], raw[5], raw[6], raw[7]);
+        for (String field : fields) {
+            if (field.contains(OWN_NOTIFICATION_MARKER)) {
+                return null;
+            }
         }
+        return fields;
+    }
+
+    //pulls appName, title, text, infoText, subText, bigTitle, email big text and messages out of the
+    //notification, the last two are null unless the category calls for them
+    private static String[] extractFields(Context context, StatusBarNotification sbn) {
+        try {
+            Notification notification = sbn.getNotification();
+            String bigText = null;
+            String messages = null;
+            try {
+                String category = notification.category;
+                if (Notification.CATEGORY_EMAIL.equals(category)) {
+                    CharSequence bigTextChars = notification.extras.getCharSequence("android.bigText");
+                    bigText = bigTextChars != null ? bigTextChars.toString() : null;
+                } else if (Notification.CATEGORY_MESSAGE.equals(category)) {
+                    messages = ifNotNull(notification.extras.getString(Notification.EXTRA_MESSAGES));
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Error processing bigText/messages for " + getAppNameFromPkgName(context, sbn.getPackageName()), e);
+            }
+            return new String[]{
+                    getAppNameFromPkgName(context, sbn.getPackageName()),
+                    notification.extras.getString(Notification.EXTRA_TITLE),
+                    notification.extras.getString(Notification.EXTRA_TEXT),
+                    notification.extras.getString(Notification.EXTRA_INFO_TEXT),
+                    notification.extras.getString(Notification.EXTRA_SUB_TEXT),
+                    notification.extras.getString(Notification.EXTRA_TITLE_BIG),
+                    bigText,
+                    messages};
+        } catch (Exception e) {
+            Log.e(TAG, "Could not parse data for: " + getAppNameFromPkgName(context, sbn.getPackageName()) + " due to " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    public static String shortenString(CharSequence s) {
+        return NotificationEncoder.shortenString(s);
     }
 
     public static String ifNotNull(String str) {
@@ -124,13 +251,21 @@ public class NLService extends NotificationListenerService {
 
     public static String getAppNameFromPkgName(Context context, String Packagename) {
         if (Packagename == null || context == null) return "";
+        String cached = AppNameCache.get(Packagename);
+        if (cached != null) {
+            return cached;
+        }
+        String label;
         try {
             PackageManager packageManager = context.getPackageManager();
             ApplicationInfo info = packageManager.getApplicationInfo(Packagename, PackageManager.GET_META_DATA);
-            return (String) packageManager.getApplicationLabel(info);
+            label = (String) packageManager.getApplicationLabel(info);
         } catch (PackageManager.NameNotFoundException e) {
             Log.e(TAG, "Could not get app name for package: " + Packagename, e); // Now correctly references static TAG
-            return "";
+            label = "";
         }
+        //misses are cached as well, a later install invalidates them
+        AppNameCache.put(Packagename, label);
+        return label;
     }
 }
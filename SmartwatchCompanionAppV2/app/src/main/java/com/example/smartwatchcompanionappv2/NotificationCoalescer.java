@@ -0,0 +1,113 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Merges bursts of posted/removed events per notification key. Apps that update a
+ * notification many times a second (typing indicators, progress bars) would otherwise
+ * trigger a sync for every update, here only the last state of each key within the
+ * window is forwarded.
+ */
+public class NotificationCoalescer {
+    public static final long DEFAULT_WINDOW_MS = 250;
+
+    //receivedAt is the elapsedRealtime of the first event for the key in this window
+    public interface Listener {
+        void onPosted(StatusBarNotification sbn, long receivedAt);
+
+        void onRemoved(StatusBarNotification sbn, long receivedAt);
+    }
+
+    private static final class PendingEvent {
+        StatusBarNotification sbn;
+        boolean removed;
+        long receivedAt;
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+    private final LinkedHashMap<String, PendingEvent> pending = new LinkedHashMap<>();
+    private final Runnable flushRunnable = this::flush;
+    private long windowMs;
+    private boolean flushScheduled = false;
+    private long received = 0;
+    private long emitted = 0;
+
+    public NotificationCoalescer(Looper looper, Listener listener) {
+        this(looper, listener, DEFAULT_WINDOW_MS);
+    }
+
+    public NotificationCoalescer(Looper looper, Listener listener, long windowMs) {
+        this.handler = new Handler(looper);
+        this.listener = listener;
+        this.windowMs = windowMs;
+    }
+
+    public synchronized void setWindowMs(long windowMs) {
+        this.windowMs = windowMs;
+    }
+
+    public void posted(StatusBarNotification sbn) {
+        add(sbn, false);
+    }
+
+    public void removed(StatusBarNotification sbn) {
+        add(sbn, true);
+    }
+
+    private synchronized void add(StatusBarNotification sbn, boolean removed) {
+        received++;
+        PendingEvent event = pending.get(sbn.getKey());
+        if (event == null) {
+            event = new PendingEvent();
+            event.receivedAt = SystemClock.elapsedRealtime();
+            pending.put(sbn.getKey(), event);
+        }
+        event.sbn = sbn;
+        event.removed = removed;
+        //the window starts with the first event of a burst, later events ride along with it
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, windowMs);
+        }
+    }
+
+    //forwards the final state of every key seen since the last flush on the calling thread,
+    //the scheduled flush is cancelled
+    public void flush() {
+        ArrayList<PendingEvent> events;
+        synchronized (this) {
+            handler.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+            events = new ArrayList<>(pending.values());
+            pending.clear();
+            emitted += events.size();
+        }
+        for (PendingEvent event : events) {
+            if (event.removed) {
+                listener.onRemoved(event.sbn, event.receivedAt);
+            } else {
+                listener.onPosted(event.sbn, event.receivedAt);
+            }
+        }
+    }
+
+    public synchronized long getReceivedCount() {
+        return received;
+    }
+
+    public synchronized long getEmittedCount() {
+        return emitted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "received=" + received + " emitted=" + emitted + " pending=" + pending.size() + " windowMs=" + windowMs;
+    }
+}
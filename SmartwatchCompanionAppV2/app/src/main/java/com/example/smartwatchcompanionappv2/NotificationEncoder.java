@@ -0,0 +1,108 @@
+package com.example.smartwatchcompanionappv2;
+
+//builds the per-notification record sent to the watch in a single pass over each field
+//the format is "appName,title;text;infoText;subText;bigTitle;" followed by the email big text
+//or the message extras. Inside the title..bigTitle fields newlines are dropped and ';' becomes ','
+//and everything up to and including the last ';' is restricted to ASCII. The trailing extra is
+//escaped the same way (email) or passed through as is (messages) but not ASCII filtered, exactly
+//like the string based version this replaces
+public class NotificationEncoder {
+    public static final int MAX_BIG_TEXT_LENGTH = 240;
+
+    private final StringBuilder sb = new StringBuilder(512);
+
+    public String encode(String appName, String title, String text, String infoText, String subText,
+                         String bigTitle, CharSequence emailBigText, String messages) {
+        sb.setLength(0);
+        appendAscii(appName);
+        sb.append(',');
+        appendField(title);
+        appendField(text);
+        appendField(infoText);
+        appendField(subText);
+        appendField(bigTitle);
+        if (emailBigText != null) {
+            appendBigText(emailBigText);
+        } else if (messages != null) {
+            sb.append(messages);
+        }
+        return sb.toString();
+    }
+
+    //the same content as encode() split into appName, title, text, infoText, subText, bigTitle and
+    //extra for the length prefixed binary format, so nothing needs escaping. Only the ASCII filter
+    //is kept since the watch can not render anything else
+    public String[] encodeFields(String appName, String title, String text, String infoText, String subText,
+                                 String bigTitle, CharSequence emailBigText, String messages) {
+        String[] fields = new String[7];
+        fields[0] = ascii(appName);
+        fields[1] = ascii(title);
+        fields[2] = ascii(text);
+        fields[3] = ascii(infoText);
+        fields[4] = ascii(subText);
+        fields[5] = ascii(bigTitle);
+        if (emailBigText != null) {
+            fields[6] = shortenString(emailBigText);
+        } else if (messages != null) {
+            fields[6] = messages;
+        } else {
+            fields[6] = "";
+        }
+        return fields;
+    }
+
+    private String ascii(String s) {
+        sb.setLength(0);
+        appendAscii(s);
+        return sb.toString();
+    }
+
+    //the same cut shortenString applies, but escaped while copying
+    private void appendBigText(CharSequence s) {
+        int length = Math.min(s.length(), MAX_BIG_TEXT_LENGTH);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '\n') {
+                continue;
+            }
+            sb.append(c == ';' ? ',' : c);
+        }
+        if (s.length() > MAX_BIG_TEXT_LENGTH) {
+            sb.append("...");
+        }
+    }
+
+    private void appendAscii(String s) {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                sb.append(c);
+            }
+        }
+    }
+
+    private void appendField(String s) {
+        if (s != null) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                char c = s.charAt(i);
+                if (c == '\n' || c >= 0x80) {
+                    continue;
+                }
+                sb.append(c == ';' ? ',' : c);
+            }
+        }
+        sb.append(';');
+    }
+
+    public static String shortenString(CharSequence s) {
+        if (s == null) return "";
+        if (s.length() > MAX_BIG_TEXT_LENGTH) {
+            return s.toString().substring(0, MAX_BIG_TEXT_LENGTH) + "...";
+        } else {
+            return s.toString();
+        }
+    }
+}
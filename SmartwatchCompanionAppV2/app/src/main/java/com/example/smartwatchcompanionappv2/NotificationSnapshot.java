@@ -0,0 +1,49 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.HashMap;
+
+//remembers what was last sent to the watch for each notification, keyed by
+//StatusBarNotification.getKey(), so only real changes have to be sent. Deltas sent while the
+//link is down never arrive, after invalidate() every event is sent until the next full list
+public class NotificationSnapshot {
+    public static final String DELTA_ADD = "add";
+    public static final String DELTA_UPDATE = "update";
+    public static final String DELTA_REMOVE = "remove";
+
+    private final HashMap<String, Integer> sent = new HashMap<>();
+    //the watch may have missed deltas, nothing is suppressed
+    private boolean stale = false;
+
+    //returns the delta to send for a posted notification, or null if the watch already has this content
+    public synchronized String posted(String key, String payload) {
+        Integer previous = sent.put(key, payload.hashCode());
+        if (previous == null) {
+            return DELTA_ADD;
+        }
+        return previous == payload.hashCode() && !stale ? null : DELTA_UPDATE;
+    }
+
+    //returns DELTA_REMOVE if the watch knows about this notification, null otherwise
+    public synchronized String removed(String key) {
+        return sent.remove(key) != null || stale ? DELTA_REMOVE : null;
+    }
+
+    //called when the link to the watch drops
+    public synchronized void invalidate() {
+        stale = true;
+    }
+
+    public synchronized boolean isStale() {
+        return stale;
+    }
+
+    //called before a full list is sent, the list then repopulates the snapshot through posted()
+    public synchronized void clear() {
+        sent.clear();
+        stale = false;
+    }
+
+    public synchronized int size() {
+        return sent.size();
+    }
+}
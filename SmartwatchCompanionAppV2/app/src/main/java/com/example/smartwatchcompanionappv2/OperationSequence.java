@@ -0,0 +1,65 @@
+package com.example.smartwatchcompanionappv2;
+
+/**
+ * Tells a GATT callback for the operation in flight from a late one for an operation that
+ * already timed out. Callbacks only say what kind of operation finished and carry nothing
+ * that identifies the request, so two things are tracked instead:
+ * <ul>
+ * <li>every started operation gets a sequence number and a callback is stamped with
+ * {@link #arrival()} the moment it comes in, one that arrived before the operation in
+ * flight was started cannot be its answer;</li>
+ * <li>after a timeout the queue holds off the next operation until the late callback has
+ * been absorbed ({@link #absorbLate}) or it gives up waiting ({@link #giveUpOnLate}), so a
+ * late write callback cannot complete the next write of a chunk stream.</li>
+ * </ul>
+ * A callback that turns up only after the queue gave up on it is still indistinguishable
+ * from the answer to a following operation of the same kind.
+ * <p>
+ * Everything but {@link #arrival()} belongs to the queue's thread, {@link #arrival()} may
+ * be called from any thread.
+ */
+public class OperationSequence {
+    private volatile long started = 0;
+    private String currentName;
+    //the operation that timed out and whose callback may still come, null if none
+    private String lateName;
+
+    //name is about to be executed
+    public void start(String name) {
+        currentName = name;
+        started++;
+    }
+
+    //stamp for a callback arriving now
+    public long arrival() {
+        return started;
+    }
+
+    //true if a callback for name stamped with arrival completes the operation last started
+    public boolean matches(String name, long arrival) {
+        return started > 0 && arrival == started && name.equals(currentName);
+    }
+
+    //the operation last started timed out, its callback may still arrive
+    public void timedOut() {
+        lateName = currentName;
+    }
+
+    //true while nothing should be started because a late callback is expected
+    public boolean isAwaitingLate() {
+        return lateName != null;
+    }
+
+    //true (and no longer waiting) if a callback for name is the late one expected
+    public boolean absorbLate(String name) {
+        if (lateName == null || !lateName.equals(name)) {
+            return false;
+        }
+        lateName = null;
+        return true;
+    }
+
+    public void giveUpOnLate() {
+        lateName = null;
+    }
+}
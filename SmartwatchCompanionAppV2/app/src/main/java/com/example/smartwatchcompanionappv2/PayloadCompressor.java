@@ -0,0 +1,177 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.Arrays;
+
+/**
+ * Small-window LZSS codec for large responses (notification lists, calendar dumps). The
+ * format is picked so the watch can decode it in a single pass with no tables:
+ * <pre>
+ * payload := MARKER:u8 originalLength:varint group*
+ * group   := flags:u8 token{1..8}     flag bit i (LSB first) set = literal, clear = match
+ * literal := byte
+ * match   := offsetLow:u8 (offsetHigh:u4 | lengthMinus3:u4)
+ * </pre>
+ * Matches reach back at most {@link #WINDOW_SIZE} - 1 bytes and are 3 to 18 bytes long.
+ * {@link #MARKER} can never start a text response (0xFF is not valid UTF-8) or a
+ * {@link WireFormat} frame, so the watch tells compressed payloads apart by the first byte.
+ * The matching decoder lives in ESP32_BLE_Example_Code_V2/BLEServer.ino.
+ */
+public class PayloadCompressor {
+    public static final int MARKER = 0xFF;
+    public static final String NAME = "lz";
+
+    public static final int WINDOW_SIZE = 4096;
+    public static final int MIN_MATCH = 3;
+    public static final int MAX_MATCH = MIN_MATCH + 15;
+    // anything shorter fits in a chunk or two and is not worth the watch's time
+    public static final int MIN_COMPRESS_LENGTH = 64;
+
+    private static final int HASH_BITS = 12;
+    private static final int MAX_CHAIN = 32;
+
+    private PayloadCompressor() {
+    }
+
+    /**
+     * Returns the compressed payload, or null if the input is too short or compressing it
+     * would not make it smaller, in which case the caller sends the original bytes.
+     */
+    public static byte[] compress(byte[] data) {
+        if (data.length < MIN_COMPRESS_LENGTH) {
+            return null;
+        }
+        // worst case is every byte a literal plus one flag byte per 8, give up before that
+        byte[] out = new byte[data.length];
+        int pos = 0;
+        out[pos++] = (byte) MARKER;
+        pos = WireFormat.putVarint(out, pos, data.length);
+
+        int[] head = new int[1 << HASH_BITS];
+        int[] prev = new int[WINDOW_SIZE];
+        Arrays.fill(head, -1);
+
+        int flagPos = -1;
+        int flagBit = 8;
+        int i = 0;
+        while (i < data.length) {
+            if (flagBit == 8) {
+                if (pos >= out.length) {
+                    return null;
+                }
+                flagPos = pos++;
+                out[flagPos] = 0;
+                flagBit = 0;
+            }
+
+            int bestLength = 0;
+            int bestOffset = 0;
+            if (i + MIN_MATCH <= data.length) {
+                int limit = Math.min(MAX_MATCH, data.length - i);
+                int candidate = head[hash(data, i)];
+                for (int chain = 0; candidate >= 0 && i - candidate < WINDOW_SIZE && chain < MAX_CHAIN; chain++) {
+                    int length = 0;
+                    while (length < limit && data[candidate + length] == data[i + length]) {
+                        length++;
+                    }
+                    if (length > bestLength) {
+                        bestLength = length;
+                        bestOffset = i - candidate;
+                        if (length == limit) {
+                            break;
+                        }
+                    }
+                    int next = prev[candidate % WINDOW_SIZE];
+                    if (next >= candidate) {
+                        break;
+                    }
+                    candidate = next;
+                }
+            }
+
+            if (bestLength >= MIN_MATCH) {
+                if (pos + 2 > out.length) {
+                    return null;
+                }
+                out[pos++] = (byte) bestOffset;
+                out[pos++] = (byte) (((bestOffset >> 8) << 4) | (bestLength - MIN_MATCH));
+                for (int end = i + bestLength; i < end; i++) {
+                    insert(data, i, head, prev);
+                }
+            } else {
+                if (pos >= out.length) {
+                    return null;
+                }
+                out[flagPos] |= (byte) (1 << flagBit);
+                out[pos++] = data[i];
+                insert(data, i, head, prev);
+                i++;
+            }
+            flagBit++;
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    public static boolean isCompressed(byte[] payload) {
+        return payload.length > 0 && (payload[0] & 0xFF) == MARKER;
+    }
+
+    //the reverse of compress, mirrors the watch side decoder. Malformed input throws
+    //IllegalArgumentException
+    public static byte[] decompress(byte[] payload) {
+        if (!isCompressed(payload)) {
+            throw new IllegalArgumentException("Missing compression marker");
+        }
+        int[] pos = {1};
+        long length = WireFormat.readVarint(payload, pos, payload.length);
+        if (length < 0) {
+            throw new IllegalArgumentException("Truncated length");
+        }
+        byte[] out = new byte[(int) length];
+        int o = 0;
+        int p = pos[0];
+        while (o < out.length) {
+            if (p >= payload.length) {
+                throw new IllegalArgumentException("Truncated payload at " + o + " of " + out.length);
+            }
+            int flags = payload[p++] & 0xFF;
+            for (int bit = 0; bit < 8 && o < out.length; bit++) {
+                if ((flags & (1 << bit)) != 0) {
+                    if (p >= payload.length) {
+                        throw new IllegalArgumentException("Truncated literal");
+                    }
+                    out[o++] = payload[p++];
+                } else {
+                    if (p + 2 > payload.length) {
+                        throw new IllegalArgumentException("Truncated match");
+                    }
+                    int low = payload[p++] & 0xFF;
+                    int high = payload[p++] & 0xFF;
+                    int offset = ((high >> 4) << 8) | low;
+                    int matchLength = (high & 0x0F) + MIN_MATCH;
+                    if (offset == 0 || offset > o || o + matchLength > out.length) {
+                        throw new IllegalArgumentException("Bad match at " + o);
+                    }
+                    // byte by byte on purpose, overlapping matches repeat the run
+                    for (int k = 0; k < matchLength; k++, o++) {
+                        out[o] = out[o - offset];
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    private static int hash(byte[] data, int i) {
+        int h = ((data[i] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+        return (h * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private static void insert(byte[] data, int i, int[] head, int[] prev) {
+        if (i + MIN_MATCH > data.length) {
+            return;
+        }
+        int h = hash(data, i);
+        prev[i % WINDOW_SIZE] = head[h];
+        head[h] = i;
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.Manifest;
+import android.app.PendingIntent;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.Collections;
+
+/**
+ * Brings the link back after the watch drops off (usually by walking out of range).
+ * <p>
+ * A bonded watch gets an autoConnect connection, which the controller keeps pending at
+ * no cost until the watch advertises again, on the existing client so its GattCache entry
+ * survives. Otherwise a filtered scan runs that is delivered through a PendingIntent to
+ * {@link BLEScanReceiver} (API 26+, older releases fall back to {@link WatchScanner}), so
+ * the app does not have to be awake while waiting; when the watch is seen a direct
+ * connection is made right away. A direct connection replaces the client, so it is never
+ * made while an autoConnect is pending. Failed attempts are
+ * retried with jittered exponential backoff. The time from losing the link to having it
+ * back is recorded for {@link #getStats()}.
+ * <p>
+ * All state is owned by the {@link BleWorker} thread.
+ */
+public class ReconnectEngine {
+    private static final String TAG = "ReconnectEngine";
+
+    public static final String ACTION_SCANNER_FOUND_DEVICE = "com.smartwatchCompanion.bleReceiver.ACTION_SCANNER_FOUND_DEVICE";
+    public static final long BACKOFF_BASE_MS = 1000;
+    public static final long BACKOFF_MAX_MS = 60000;
+
+    //how the engine gets a new connection attempt out of BLEGATT
+    public interface Connector {
+        boolean connect(String address, boolean autoConnect);
+    }
+
+    //the engine of the current BLEGATT, BLEScanReceiver reports PendingIntent scan results to it
+    private static volatile ReconnectEngine active;
+
+    public static void onDeviceSeen(String address) {
+        ReconnectEngine engine = active;
+        if (engine != null) {
+            engine.handler.post(() -> engine.deviceSeen(address));
+        }
+    }
+
+    private final Context context;
+    private final Connector connector;
+    private final Handler handler = new Handler(BleWorker.get().getLooper());
+    private final ExponentialBackoff backoff = new ExponentialBackoff(BACKOFF_BASE_MS, BACKOFF_MAX_MS);
+    private final Runnable retry = this::attempt;
+
+    private String address;
+    private boolean reconnecting = false;
+    private boolean directAttemptInFlight = false;
+    private boolean autoConnectPending = false;
+    private boolean scanning = false;
+    private long lostAt = 0;
+
+    //time-to-reconnect stats
+    private long reconnectCount = 0;
+    private long lastReconnectMs = 0;
+    private long totalReconnectMs = 0;
+    private long maxReconnectMs = 0;
+
+    public ReconnectEngine(Context context, Connector connector) {
+        this.context = context;
+        this.connector = connector;
+        active = this;
+    }
+
+    //the watch to bring back, set on every user initiated connect. A connect after stop() makes
+    //this the engine scan results are reported to again
+    public void setAddress(String address) {
+        active = this;
+        handler.post(() -> this.address = address);
+    }
+
+    //the link came up, either from the initial connect or from one of our attempts
+    public void onConnected() {
+        handler.post(() -> {
+            handler.removeCallbacks(retry);
+            stopScan();
+            directAttemptInFlight = false;
+            autoConnectPending = false;
+            if (reconnecting) {
+                long elapsed = SystemClock.elapsedRealtime() - lostAt;
+                reconnectCount++;
+                lastReconnectMs = elapsed;
+                totalReconnectMs += elapsed;
+                maxReconnectMs = Math.max(maxReconnectMs, elapsed);
+                Metrics.RECONNECT_MS.record(elapsed);
+                Log.i(TAG, "Reconnected after " + elapsed + "ms and " + backoff.getAttempt() + " retries");
+            }
+            reconnecting = false;
+            backoff.reset();
+        });
+    }
+
+    //the link went down without the user asking for it, or a reconnect attempt failed
+    public void onDisconnected() {
+        handler.post(() -> {
+            if (address == null) {
+                return;
+            }
+            if (!reconnecting) {
+                reconnecting = true;
+                lostAt = SystemClock.elapsedRealtime();
+                Log.i(TAG, "Link to " + address + " lost, reconnecting");
+                attempt();
+                return;
+            }
+            directAttemptInFlight = false;
+            autoConnectPending = false;
+            long delay = backoff.nextDelayMs();
+            Log.i(TAG, "Reconnect attempt failed, retrying in " + delay + "ms");
+            handler.removeCallbacks(retry);
+            handler.postDelayed(retry, delay);
+        });
+    }
+
+    //the user disconnected or the service is going away, nothing should come back on its own
+    public void stop() {
+        handler.post(() -> {
+            handler.removeCallbacks(retry);
+            stopScan();
+            reconnecting = false;
+            directAttemptInFlight = false;
+            autoConnectPending = false;
+            backoff.reset();
+        });
+        if (active == this) {
+            active = null;
+        }
+    }
+
+    public String getStats() {
+        return "reconnects=" + reconnectCount
+                + " lastMs=" + lastReconnectMs
+                + " avgMs=" + (reconnectCount > 0 ? totalReconnectMs / reconnectCount : 0)
+                + " maxMs=" + maxReconnectMs;
+    }
+
+    private void attempt() {
+        if (!reconnecting) {
+            return;
+        }
+        // the controller keeps an autoConnect connection pending until the bonded watch is back in range,
+        // the scan would only lead to a direct connect that throws that client away
+        boolean bonded = isBonded();
+        if (!bonded) {
+            startScan();
+        }
+        directAttemptInFlight = !bonded;
+        autoConnectPending = bonded;
+        if (!connector.connect(address, bonded)) {
+            directAttemptInFlight = false;
+            autoConnectPending = false;
+            if (bonded) {
+                startScan();
+            }
+            handler.postDelayed(retry, backoff.nextDelayMs());
+        }
+    }
+
+    private void deviceSeen(String seenAddress) {
+        if (!reconnecting || directAttemptInFlight || autoConnectPending || !seenAddress.equals(address)) {
+            return;
+        }
+        Log.i(TAG, "Watch is advertising again, connecting directly");
+        handler.removeCallbacks(retry);
+        directAttemptInFlight = true;
+        if (!connector.connect(address, false)) {
+            directAttemptInFlight = false;
+            handler.postDelayed(retry, backoff.nextDelayMs());
+        }
+    }
+
+    private boolean isBonded() {
+        BluetoothAdapter adapter = getAdapter();
+        if (adapter == null || ContextCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            return false;
+        }
+        try {
+            return adapter.getRemoteDevice(address).getBondState() == BluetoothDevice.BOND_BONDED;
+        } catch (SecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void startScan() {
+        if (scanning) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            scanning = WatchScanner.get().start(context, ScanProfile.RECONNECT);
+            return;
+        }
+        BluetoothAdapter adapter = getAdapter();
+        BluetoothLeScanner scanner = adapter != null ? adapter.getBluetoothLeScanner() : null;
+        if (scanner == null || ContextCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "Cannot start reconnect scan");
+            return;
+        }
+        ScanFilter filter = new ScanFilter.Builder().setDeviceAddress(address).build();
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanProfile.RECONNECT.scanMode)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH)
+                .build();
+        try {
+            int result = scanner.startScan(Collections.singletonList(filter), settings, scanIntent());
+            scanning = result == 0;
+            if (!scanning) {
+                Log.w(TAG, "PendingIntent scan failed with error " + result);
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException on startScan", e);
+        }
+    }
+
+    private void stopScan() {
+        if (!scanning) {
+            return;
+        }
+        scanning = false;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            WatchScanner.get().stop();
+            return;
+        }
+        BluetoothAdapter adapter = getAdapter();
+        BluetoothLeScanner scanner = adapter != null ? adapter.getBluetoothLeScanner() : null;
+        if (scanner == null) {
+            return;
+        }
+        try {
+            scanner.stopScan(scanIntent());
+        } catch (SecurityException | IllegalStateException e) {
+            Log.w(TAG, "Could not stop reconnect scan", e);
+        }
+    }
+
+    //the system fills in the scan results, so the PendingIntent has to stay mutable
+    private PendingIntent scanIntent() {
+        Intent intent = new Intent(context, BLEScanReceiver.class);
+        intent.setAction(ACTION_SCANNER_FOUND_DEVICE);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            flags |= PendingIntent.FLAG_MUTABLE;
+        }
+        return PendingIntent.getBroadcast(context, 0, intent, flags);
+    }
+
+    private BluetoothAdapter getAdapter() {
+        BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        return bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+    }
+}
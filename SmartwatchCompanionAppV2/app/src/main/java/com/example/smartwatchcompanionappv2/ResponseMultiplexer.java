@@ -0,0 +1,125 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Interleaves the responses to concurrent requests on one characteristic. Every write
+ * carries a {@link #HEADER_SIZE} byte header, {@link #MARKER}, the request id and flags,
+ * ahead of a piece of one response, and the responses in flight take turns chunk by chunk,
+ * so a short one (now playing) is not stuck behind a long one (the notification list). The
+ * watch reassembles each response by id; the chunk flagged {@link #FLAG_LAST} ends it and
+ * is always written with response, so its completion means the watch has the whole thing.
+ * <p>
+ * Once multiplexing is on every response goes through here, the ones to commands without
+ * an id as {@link WatchLink#NO_REQUEST}, so the watch never has to tell a header from the
+ * start of a classic response. The marker never starts UTF-8 text, a binary frame or a
+ * compressed payload either, which keeps a stray classic write from passing as a header.
+ * <p>
+ * The other chunks go out without response when the characteristic allows it. Like
+ * {@link StreamingTransfer} at most {@link #DEFAULT_CREDITS} writes are queued ahead.
+ * A failed chunk aborts its response only, the watch times that request out.
+ */
+public class ResponseMultiplexer {
+    //marker, request id and flags
+    public static final int HEADER_SIZE = 3;
+    //MUX_MARKER, 0xFF is taken by PayloadCompressor
+    public static final int MARKER = 0xFE;
+    public static final int FLAG_LAST = 0x01;
+    public static final int DEFAULT_CREDITS = StreamingTransfer.DEFAULT_CREDITS;
+
+    //status of the last chunk or of the first one that failed, chunks is the number of writes it took
+    public interface Completion {
+        void onComplete(int status, int chunks);
+    }
+
+    private static final class Response {
+        final int requestId;
+        final MessageClipper clipper;
+        final Completion done;
+        int chunks = 0;
+        int inFlight = 0;
+        int failedStatus = BleTransport.STATUS_SUCCESS;
+        //no more chunks will be written, either all are out or the response was aborted
+        boolean ended = false;
+
+        Response(int requestId, MessageClipper clipper, Completion done) {
+            this.requestId = requestId;
+            this.clipper = clipper;
+            this.done = done;
+        }
+    }
+
+    private final BleTransport transport;
+    private final UUID characteristic;
+    private final ArrayDeque<Response> turns = new ArrayDeque<>();
+    private final int maxCredits;
+    private int credits;
+
+    public ResponseMultiplexer(BleTransport transport, UUID characteristic) {
+        this(transport, characteristic, DEFAULT_CREDITS);
+    }
+
+    public ResponseMultiplexer(BleTransport transport, UUID characteristic, int credits) {
+        this.transport = transport;
+        this.characteristic = characteristic;
+        this.maxCredits = Math.max(1, credits);
+        this.credits = this.maxCredits;
+    }
+
+    //queues the response to requestId (1 to 255, NO_REQUEST for a command without one), it starts taking turns right away
+    public synchronized void send(int requestId, byte[] payload, Completion done) {
+        MessageClipper clipper = new MessageClipper(payload,
+                MessageClipper.chunkSizeForMtu(transport.getMtu()) - HEADER_SIZE);
+        turns.add(new Response(requestId, clipper, done));
+        pump();
+    }
+
+    //responses with chunks still to write
+    public synchronized int getPendingCount() {
+        return turns.size();
+    }
+
+    private void pump() {
+        boolean streaming = transport.supportsWriteWithoutResponse(characteristic);
+        while (credits > 0 && !turns.isEmpty()) {
+            final Response response = turns.poll();
+            ByteBuffer piece = response.clipper.nextChunk();
+            final boolean last = response.clipper.messageComplete();
+            byte[] value = new byte[HEADER_SIZE + piece.remaining()];
+            value[0] = (byte) MARKER;
+            value[1] = (byte) response.requestId;
+            value[2] = (byte) (last ? FLAG_LAST : 0);
+            piece.get(value, HEADER_SIZE, piece.remaining());
+            if (last) {
+                response.ended = true;
+                response.clipper.release();
+            } else {
+                //back of the line, the next response gets the next chunk
+                turns.add(response);
+            }
+            credits--;
+            response.inFlight++;
+            response.chunks++;
+            transport.write(characteristic, value, last || !streaming, status -> onChunkFinished(response, status));
+        }
+    }
+
+    private synchronized void onChunkFinished(Response response, int status) {
+        credits++;
+        response.inFlight--;
+        if (status != BleTransport.STATUS_SUCCESS && response.failedStatus == BleTransport.STATUS_SUCCESS) {
+            response.failedStatus = status;
+            if (!response.ended) {
+                turns.remove(response);
+                response.ended = true;
+                response.clipper.release();
+            }
+        }
+        if (response.ended && response.inFlight == 0) {
+            response.done.onComplete(response.failedStatus, response.chunks);
+        }
+        pump();
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.bluetooth.le.ScanSettings;
+
+//named ScanSettings mode and batch report delay combinations for WatchScanner
+//INTERACTIVE reports every match right away while the device list is on screen, RECONNECT and
+//BACKGROUND let the controller collect matches and deliver them in batches to cut wakeups
+public enum ScanProfile {
+    INTERACTIVE(ScanSettings.SCAN_MODE_LOW_LATENCY, 0),
+    RECONNECT(ScanSettings.SCAN_MODE_BALANCED, 1000),
+    BACKGROUND(ScanSettings.SCAN_MODE_LOW_POWER, 5000);
+
+    public final int scanMode;
+    public final long reportDelayMs;
+
+    ScanProfile(int scanMode, long reportDelayMs) {
+        this.scanMode = scanMode;
+        this.reportDelayMs = reportDelayMs;
+    }
+}
@@ -43,20 +43,21 @@ public class SpotifyReceiver extends BroadcastReceiver {
     }
 
     //variables that will be updated when there is a detected change in spotify
-    private String songData = "";
-    public Boolean isPlaying = false;
+    //the receiver is instantiated per broadcast, so the state lives in static fields
+    private static volatile String songData = "";
+    public static volatile Boolean isPlaying = false;
 
-    public String getStatusText(){
+    public static String getStatusText(){
       return "currently playing: " + isPlaying + "\nCurrent Song: " + songData;
     };
 
     //return the song data as a string
-    public String getSongData() {
+    public static String getSongData() {
         return songData;
     }
 
     //return play status as a string (easier to send over BLE and debug on the other end to just use a string)
-    public String isPlaying() {
+    public static String isPlaying() {
         if (isPlaying) {
             return "1";
         } else {
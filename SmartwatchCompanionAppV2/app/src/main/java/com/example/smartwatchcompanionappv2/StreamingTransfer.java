@@ -0,0 +1,86 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.UUID;
+
+/**
+ * Streams one payload to the watch with write-without-response. Android hands a
+ * no-response write back through onCharacteristicWrite as soon as the controller has
+ * buffer space for it, so every such completion returns a credit. At most
+ * {@link #DEFAULT_CREDITS} chunks are queued ahead at any time, which keeps the
+ * controller busy without piling the whole payload into the operation queue where it
+ * would hold up control traffic. Once every chunk is out a single acknowledged read
+ * marks the end of the response, exactly like the acknowledged path.
+ */
+public class StreamingTransfer {
+    public static final int DEFAULT_CREDITS = 4;
+
+    private final BleTransport transport;
+    private final UUID characteristic;
+    private final MessageClipper clipper;
+    private final BleTransport.Completion done;
+    private final int maxCredits;
+    private int credits;
+    private int chunks = 0;
+    private int failedStatus = BleTransport.STATUS_SUCCESS;
+    private boolean finished = false;
+
+    //done gets the status of the final read, or of the first chunk that failed
+    public StreamingTransfer(BleTransport transport, UUID characteristic, MessageClipper clipper,
+                             BleTransport.Completion done) {
+        this(transport, characteristic, clipper, done, DEFAULT_CREDITS);
+    }
+
+    public StreamingTransfer(BleTransport transport, UUID characteristic, MessageClipper clipper,
+                             BleTransport.Completion done, int credits) {
+        this.transport = transport;
+        this.characteristic = characteristic;
+        this.clipper = clipper;
+        this.done = done;
+        this.maxCredits = Math.max(1, credits);
+        this.credits = this.maxCredits;
+    }
+
+    public synchronized void start() {
+        pump();
+    }
+
+    public synchronized int getChunkCount() {
+        return chunks;
+    }
+
+    private synchronized void onChunkFinished(int status) {
+        credits++;
+        if (status != BleTransport.STATUS_SUCCESS && failedStatus == BleTransport.STATUS_SUCCESS) {
+            failedStatus = status;
+        }
+        pump();
+    }
+
+    private void pump() {
+        if (finished) {
+            return;
+        }
+        if (failedStatus != BleTransport.STATUS_SUCCESS) {
+            //the stream is aborted, wait for the chunks still in flight before giving up
+            if (credits == maxCredits) {
+                finished = true;
+                clipper.release();
+                done.onComplete(failedStatus);
+            }
+            return;
+        }
+        //a write can complete right away (refused once the characteristics are gone), its
+        //completion runs pump() again and may have aborted or finished the stream already
+        while (credits > 0 && !clipper.messageComplete() && !finished && failedStatus == BleTransport.STATUS_SUCCESS) {
+            byte[] value = clipper.getNextBytes();
+            credits--;
+            chunks++;
+            transport.write(characteristic, value, false, this::onChunkFinished);
+        }
+        if (!finished && failedStatus == BleTransport.STATUS_SUCCESS && clipper.messageComplete() && credits == maxCredits) {
+            finished = true;
+            clipper.release();
+            transport.read(characteristic, done);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.smartwatchcompanionappv2;
+
+//accumulates bytes and elapsed time over completed transfers so the write modes can be compared
+public class ThroughputMeter {
+    private final String name;
+    private long totalBytes = 0;
+    private long totalMs = 0;
+    private long transfers = 0;
+    private long lastBytesPerSecond = 0;
+
+    public ThroughputMeter(String name) {
+        this.name = name;
+    }
+
+    //records a transfer of bytes that took elapsedMs, the caller measures with whatever clock it runs on
+    public synchronized void record(int bytes, long elapsedMs) {
+        long elapsed = Math.max(1, elapsedMs);
+        totalBytes += bytes;
+        totalMs += elapsed;
+        transfers++;
+        lastBytesPerSecond = bytes * 1000L / elapsed;
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return totalMs > 0 ? totalBytes * 1000L / totalMs : 0;
+    }
+
+    public synchronized long getLastBytesPerSecond() {
+        return lastBytesPerSecond;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + ": " + getBytesPerSecond() + " B/s average, " + lastBytesPerSecond
+                + " B/s last, " + totalBytes + " bytes over " + transfers + " transfers";
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory trace of the BLE hot paths. Every record is a fixed set of longs (sequence,
+ * timestamp, event and three arguments) in a preallocated ring, so recording costs a few
+ * atomic stores and never allocates or formats anything; that is what lets it stay on in
+ * release builds where a Log call with a concatenated message per packet would not.
+ * <p>
+ * Writers claim a slot with one atomic increment and are never blocked, the ring keeps
+ * the last {@link #CAPACITY} records. Each slot starts with its sequence number, written
+ * last, so {@link #dump()} skips a slot that is being rewritten while it is read. Text is
+ * only produced by {@link #dump()}, on demand.
+ */
+public final class Trace {
+    public static final int CAPACITY = 2048;
+    private static final int MASK = CAPACITY - 1;
+    //sequence, time, event, a, b, c
+    private static final int STRIDE = 6;
+    private static final long WRITING = -1;
+
+    /**
+     * What a record means. The template is filled in with the arguments by {@link #dump()}:
+     * {} a number, {c} a characteristic from {@link #characteristic}, {t} the bytes packed
+     * by {@link #text}, {m} an address from {@link #address}.
+     */
+    public enum Event {
+        CHARACTERISTIC_CHANGED("changed {c} length={} data={t}"),
+        CHARACTERISTIC_READ("read {c} status={} length={}"),
+        CHARACTERISTIC_WRITE("write {c} status={}"),
+        RESPONSE_SENT("response {} bytes in {} chunks, {}ms"),
+        RESPONSE_FAILED("response {} bytes failed with status {}"),
+        DEVICE_FOUND("device {m} rssi={}");
+
+        final String template;
+
+        Event(String template) {
+            this.template = template;
+        }
+    }
+
+    private static final Event[] EVENTS = Event.values();
+    private static final AtomicLongArray ring = new AtomicLongArray(CAPACITY * STRIDE);
+    private static final AtomicLong next = new AtomicLong();
+
+    static {
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            ring.set(slot * STRIDE, WRITING);
+        }
+    }
+
+    private Trace() {
+    }
+
+    public static void record(Event event) {
+        record(event, 0, 0, 0);
+    }
+
+    public static void record(Event event, long a) {
+        record(event, a, 0, 0);
+    }
+
+    public static void record(Event event, long a, long b) {
+        record(event, a, b, 0);
+    }
+
+    public static void record(Event event, long a, long b, long c) {
+        long sequence = next.getAndIncrement();
+        int base = (int) (sequence & MASK) * STRIDE;
+        ring.set(base, WRITING);
+        ring.lazySet(base + 1, System.nanoTime());
+        ring.lazySet(base + 2, event.ordinal());
+        ring.lazySet(base + 3, a);
+        ring.lazySet(base + 4, b);
+        ring.lazySet(base + 5, c);
+        ring.set(base, sequence);
+    }
+
+    //a characteristic as a {c} argument, the low half is what tells the watch's UUIDs apart
+    public static long characteristic(UUID uuid) {
+        return uuid.getLeastSignificantBits();
+    }
+
+    //up to the first 8 bytes of value as a {t} argument
+    public static long text(byte[] value) {
+        long packed = 0;
+        if (value == null) {
+            return packed;
+        }
+        for (int i = 0; i < 8; i++) {
+            packed = packed << 8 | (i < value.length ? value[i] & 0xFF : 0);
+        }
+        return packed;
+    }
+
+    //"AA:BB:CC:DD:EE:FF" as an {m} argument, parsed in place
+    public static long address(String address) {
+        long packed = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                packed = packed << 4 | digit;
+            }
+        }
+        return packed;
+    }
+
+    //number of records written since the process started, including those already overwritten
+    public static long getRecordCount() {
+        return next.get();
+    }
+
+    /**
+     * Decodes the records still in the ring, oldest first, one per line. Times are in
+     * milliseconds relative to the newest record.
+     */
+    public static String dump() {
+        long end = next.get();
+        long start = Math.max(0, end - CAPACITY);
+        long[] records = new long[(int) (end - start) * STRIDE];
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            if (read(sequence, records, count * STRIDE)) {
+                count++;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        long newest = count > 0 ? records[(count - 1) * STRIDE + 1] : 0;
+        for (int i = 0; i < count; i++) {
+            int base = i * STRIDE;
+            sb.append(String.format(Locale.US, "%10.3f ", (records[base + 1] - newest) / 1e6));
+            format(sb, records, base);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    //copies the slot of sequence to records at offset, false if it has been overwritten or is being written
+    private static boolean read(long sequence, long[] records, int offset) {
+        int base = (int) (sequence & MASK) * STRIDE;
+        if (ring.get(base) != sequence) {
+            return false;
+        }
+        for (int i = 1; i < STRIDE; i++) {
+            records[offset + i] = ring.get(base + i);
+        }
+        return ring.get(base) == sequence;
+    }
+
+    private static void format(StringBuilder sb, long[] records, int base) {
+        long event = records[base + 2];
+        if (event < 0 || event >= EVENTS.length) {
+            sb.append("unknown event ").append(event);
+            return;
+        }
+        String template = EVENTS[(int) event].template;
+        int arg = 3;
+        for (int i = 0; i < template.length(); i++) {
+            char ch = template.charAt(i);
+            int close = ch == '{' ? template.indexOf('}', i) : -1;
+            if (close < 0) {
+                sb.append(ch);
+                continue;
+            }
+            long value = arg < STRIDE ? records[base + arg++] : 0;
+            switch (template.substring(i + 1, close)) {
+                case "c":
+                    appendCharacteristic(sb, value);
+                    break;
+                case "t":
+                    appendText(sb, value);
+                    break;
+                case "m":
+                    appendAddress(sb, value);
+                    break;
+                default:
+                    sb.append(value);
+            }
+            i = close;
+        }
+    }
+
+    private static void appendCharacteristic(StringBuilder sb, long value) {
+        if (value == characteristic(WatchUuids.COMMAND_UUID)) {
+            sb.append("command");
+        } else if (value == characteristic(WatchUuids.NOTIFICATION_UPDATE_UUID)) {
+            sb.append("notification_update");
+        } else {
+            sb.append(String.format(Locale.US, "%016x", value));
+        }
+    }
+
+    private static void appendText(StringBuilder sb, long value) {
+        sb.append('"');
+        for (int shift = 56; shift >= 0 && (value << (56 - shift)) != 0; shift -= 8) {
+            int b = (int) (value >>> shift) & 0xFF;
+            sb.append(b >= 0x20 && b < 0x7F ? (char) b : '.');
+        }
+        sb.append('"');
+    }
+
+    private static void appendAddress(StringBuilder sb, long value) {
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            sb.append(String.format(Locale.US, "%02X", (value >>> shift) & 0xFF));
+            if (shift > 0) {
+                sb.append(':');
+            }
+        }
+    }
+}
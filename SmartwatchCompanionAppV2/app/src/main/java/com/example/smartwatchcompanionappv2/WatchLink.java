@@ -0,0 +1,279 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * The phone side of the sync protocol, independent of how the bytes reach the watch.
+ * Owns the per connection "/format", "/compress" and "/multiplex" negotiation, sends
+ * responses in MTU sized chunks over the command characteristic followed by the read that
+ * tells the watch the response is complete (streamed with write-without-response when it
+ * is more than {@link #STREAMING_MIN_CHUNKS} chunks), and pushes notification deltas.
+ * <p>
+ * Once "/multiplex on" was negotiated the watch may prefix a command with a request id,
+ * "#7 /calendar". From then on every response goes through the {@link ResponseMultiplexer}
+ * instead, interleaved with the other responses in flight; one to a command without an id
+ * is tagged {@link #NO_REQUEST}.
+ * <p>
+ * BLEGATT runs it over a {@link GattTransport}; nothing in here touches Android so the
+ * whole pipeline can also run against a simulated link on the JVM.
+ */
+public class WatchLink {
+    // responses longer than this many chunks are streamed without response
+    public static final int STREAMING_MIN_CHUNKS = 2;
+    // the request id of a command without "#<id> " in front, its response goes out the classic way
+    // unless multiplexing is on
+    public static final int NO_REQUEST = 0;
+    public static final int MAX_REQUEST_ID = 255;
+
+    public interface Listener {
+        //sync traffic is about to go out
+        void onSyncActivity();
+
+        //a response finished, payloadBytes before and sentBytes after compression
+        void onResponseSent(int payloadBytes, int sentBytes, int chunks, boolean streamed, long elapsedMs, int status);
+
+        //a response or delta was dropped because the characteristic is not available
+        void onDropped(String what);
+    }
+
+    private final BleTransport transport;
+    private final LongSupplier clock;
+    private final Listener listener;
+    private final ThroughputMeter acknowledgedThroughput = new ThroughputMeter("acknowledged");
+    private final ThroughputMeter streamingThroughput = new ThroughputMeter("streaming");
+    // negotiated per connection with "/format binary", the text protocol is the fallback
+    private volatile boolean binaryFormat = false;
+    // negotiated per connection with "/compress lz", large responses are sent compressed when that makes them smaller
+    private volatile boolean compression = false;
+    // negotiated per connection with "/multiplex on", commands with a request id are answered through the multiplexer
+    private volatile boolean multiplexing = false;
+    private final ResponseMultiplexer multiplexer;
+
+    //clock is in milliseconds, only differences are used
+    public WatchLink(BleTransport transport, LongSupplier clock, Listener listener) {
+        this.transport = transport;
+        this.clock = clock;
+        this.listener = listener;
+        this.multiplexer = new ResponseMultiplexer(transport, WatchUuids.COMMAND_UUID);
+    }
+
+    //the id of "#<id> <command>", NO_REQUEST if the command has none or it is out of range
+    public static int requestId(String command) {
+        if (!command.startsWith("#")) {
+            return NO_REQUEST;
+        }
+        int end = command.indexOf(' ');
+        try {
+            int id = Integer.parseInt(end > 0 ? command.substring(1, end) : command.substring(1));
+            return id > NO_REQUEST && id <= MAX_REQUEST_ID ? id : NO_REQUEST;
+        } catch (NumberFormatException e) {
+            return NO_REQUEST;
+        }
+    }
+
+    //the command without its "#<id> " prefix
+    public static String stripRequestId(String command) {
+        if (requestId(command) == NO_REQUEST) {
+            return command;
+        }
+        int end = command.indexOf(' ');
+        return end > 0 ? command.substring(end + 1) : "";
+    }
+
+    /**
+     * Handles the commands that configure the link itself, returns false for anything else.
+     */
+    public boolean handleProtocolCommand(String command) {
+        return handleProtocolCommand(NO_REQUEST, command);
+    }
+
+    //same as above for a command that came with a request id, the command itself without it
+    public boolean handleProtocolCommand(int requestId, String command) {
+        if (command.startsWith("/format")) {
+            String format = command.substring("/format".length()).trim();
+            binaryFormat = WireFormat.FORMAT_BINARY.equals(format);
+            sendMessage(requestId, binaryFormat ? WireFormat.FORMAT_BINARY : WireFormat.FORMAT_TEXT);
+            return true;
+        } else if (command.startsWith("/compress")) {
+            String codec = command.substring("/compress".length()).trim();
+            compression = PayloadCompressor.NAME.equals(codec);
+            sendMessage(requestId, compression ? PayloadCompressor.NAME : "off");
+            return true;
+        } else if (command.startsWith("/multiplex")) {
+            boolean on = "on".equals(command.substring("/multiplex".length()).trim());
+            //the reply still goes out the way the watch expects it, the switch applies from the next response
+            sendMessage(requestId, on ? "on" : "off");
+            multiplexing = on;
+            return true;
+        }
+        return false;
+    }
+
+    //a new connection starts over with the text format, no compression and one command at a time
+    public void reset() {
+        binaryFormat = false;
+        compression = false;
+        multiplexing = false;
+    }
+
+    public boolean isBinaryFormat() {
+        return binaryFormat;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public boolean isMultiplexing() {
+        return multiplexing;
+    }
+
+    public ThroughputMeter getAcknowledgedThroughput() {
+        return acknowledgedThroughput;
+    }
+
+    public ThroughputMeter getStreamingThroughput() {
+        return streamingThroughput;
+    }
+
+    //sends a text response, compressed if that was negotiated and pays off
+    public void sendMessage(String message) {
+        sendMessage(NO_REQUEST, message);
+    }
+
+    //the response to requestId, see sendMessage(String)
+    public void sendMessage(int requestId, String message) {
+        boolean compress = compression && message.length() >= PayloadCompressor.MIN_COMPRESS_LENGTH;
+        if (compress || multiplexing) {
+            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+            byte[] packed = compress ? PayloadCompressor.compress(payload) : null;
+            if (packed != null || multiplexing) {
+                send(requestId, packed != null ? packed : payload, payload.length);
+                return;
+            }
+        }
+        //the text clipper never splits a character across chunks
+        MessageClipper clipper = MessageClipper.forMtu(message, transport.getMtu());
+        sendClipped(clipper, clipper.getLength());
+    }
+
+    //sends a binary frame the same way as sendMessage
+    public void sendBytes(byte[] payload) {
+        sendBytes(NO_REQUEST, payload);
+    }
+
+    public void sendBytes(int requestId, byte[] payload) {
+        byte[] packed = compression ? PayloadCompressor.compress(payload) : null;
+        send(requestId, packed != null ? packed : payload, payload.length);
+    }
+
+    private void send(int requestId, byte[] value, int payloadBytes) {
+        if (multiplexing) {
+            sendMultiplexed(requestId, value, payloadBytes);
+        } else {
+            sendClipped(MessageClipper.forMtu(value, transport.getMtu()), payloadBytes);
+        }
+    }
+
+    private void sendMultiplexed(int requestId, byte[] value, int payloadBytes) {
+        if (!transport.hasCharacteristic(WatchUuids.COMMAND_UUID)) {
+            listener.onDropped("response");
+            return;
+        }
+        listener.onSyncActivity();
+        final long startedAt = clock.getAsLong();
+        final boolean streamed = transport.supportsWriteWithoutResponse(WatchUuids.COMMAND_UUID);
+        multiplexer.send(requestId, value, (status, chunks) -> finish(streamed ? streamingThroughput : acknowledgedThroughput,
+                payloadBytes, value.length, chunks, streamed, startedAt, status));
+    }
+
+    private void sendClipped(MessageClipper clipper, int payloadBytes) {
+        if (!transport.hasCharacteristic(WatchUuids.COMMAND_UUID)) {
+            clipper.release();
+            listener.onDropped("response");
+            return;
+        }
+        listener.onSyncActivity();
+        final long startedAt = clock.getAsLong();
+        final int length = clipper.getLength();
+        if (length > clipper.getClipSize() * STREAMING_MIN_CHUNKS
+                && transport.supportsWriteWithoutResponse(WatchUuids.COMMAND_UUID)) {
+            final StreamingTransfer[] transfer = new StreamingTransfer[1];
+            transfer[0] = new StreamingTransfer(transport, WatchUuids.COMMAND_UUID, clipper,
+                    status -> finish(streamingThroughput, payloadBytes, length, transfer[0].getChunkCount(), true, startedAt, status));
+            transfer[0].start();
+            return;
+        }
+
+        int chunks = 0;
+        while (!clipper.messageComplete()) {
+            transport.write(WatchUuids.COMMAND_UUID, clipper.getNextBytes(), true, null);
+            chunks++;
+        }
+        clipper.release();
+        final int sentChunks = chunks;
+        transport.read(WatchUuids.COMMAND_UUID,
+                status -> finish(acknowledgedThroughput, payloadBytes, length, sentChunks, false, startedAt, status));
+    }
+
+    private void finish(ThroughputMeter meter, int payloadBytes, int length, int chunks, boolean streamed,
+                        long startedAt, int status) {
+        long elapsed = clock.getAsLong() - startedAt;
+        Metrics.TRANSFER_CHUNKS.record(chunks);
+        if (status == BleTransport.STATUS_SUCCESS) {
+            meter.record(length, elapsed);
+            Metrics.BYTES_ON_AIR.add(length);
+        }
+        listener.onResponseSent(payloadBytes, length, chunks, streamed, elapsed, status);
+    }
+
+    //pushes a single notification change to the watch as "type;key;data\n" on the notification
+    //update characteristic, the watch reassembles the record up to the newline. In binary mode the
+    //same three fields go out as a TYPE_NOTIFICATION_DELTA frame
+    public void sendNotificationDelta(String deltaType, String key, String data) {
+        sendNotificationDelta(deltaType, key, data, -1);
+    }
+
+    //same as above, postedAt is when the phone saw the change (on this link's clock), the time
+    //until its last chunk is acknowledged goes into Metrics.NOTIFICATION_SYNC_MS. -1 if unknown
+    public void sendNotificationDelta(String deltaType, String key, String data, long postedAt) {
+        if (!transport.hasCharacteristic(WatchUuids.NOTIFICATION_UPDATE_UUID)) {
+            listener.onDropped(deltaType + " delta");
+            return;
+        }
+        listener.onSyncActivity();
+        MessageClipper clipper;
+        if (binaryFormat) {
+            clipper = MessageClipper.forMtu(new WireFormat.Encoder(WireFormat.TYPE_NOTIFICATION_DELTA, true)
+                    .record(deltaType, key, data).finish(), transport.getMtu());
+        } else {
+            String record = deltaType + ";" + Objects.toString(key, "").replace(";", ",") + ";" + Objects.toString(data, "") + "\n";
+            clipper = MessageClipper.forMtu(record, transport.getMtu());
+        }
+        final int length = clipper.getLength();
+        while (!clipper.messageComplete()) {
+            byte[] chunk = clipper.getNextBytes();
+            //the writes are acknowledged in order, the last one stands for the whole delta
+            transport.write(WatchUuids.NOTIFICATION_UPDATE_UUID, chunk, true,
+                    clipper.messageComplete() ? status -> deltaSent(length, postedAt, status) : null);
+        }
+        clipper.release();
+    }
+
+    private void deltaSent(int length, long postedAt, int status) {
+        if (status != BleTransport.STATUS_SUCCESS) {
+            return;
+        }
+        Metrics.BYTES_ON_AIR.add(length);
+        if (postedAt >= 0) {
+            Metrics.NOTIFICATION_SYNC_MS.record(clock.getAsLong() - postedAt);
+        }
+    }
+
+    //true if the notification update characteristic is there, deltas are only worth building then
+    public boolean canSendDeltas() {
+        return transport.hasCharacteristic(WatchUuids.NOTIFICATION_UPDATE_UUID);
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.smartwatchcompanionappv2;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scans for the watch with {@link BluetoothLeScanner}. A {@link ScanFilter} on our service
+ * UUID is handed to the controller so advertisements from other devices never wake the
+ * app, and with a {@link ScanProfile} report delay matches are delivered in batches where
+ * the controller supports offloaded batching. Results go into
+ * {@link BLEScanReceiver#devices} the same way the legacy LeScanCallback results did.
+ */
+public class WatchScanner {
+    private static final String TAG = "WatchScanner";
+
+    private static WatchScanner instance;
+
+    public static synchronized WatchScanner get() {
+        if (instance == null) {
+            instance = new WatchScanner();
+        }
+        return instance;
+    }
+
+    private BluetoothLeScanner scanner;
+    private ScanProfile profile;
+    private long resultCount = 0;
+    private long batchCount = 0;
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            resultCount++;
+            BLEScanReceiver.onAdvertisement(result.getDevice(), result.getRssi());
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            batchCount++;
+            for (ScanResult result : results) {
+                resultCount++;
+                BLEScanReceiver.onAdvertisement(result.getDevice(), result.getRssi());
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Scan failed with error " + errorCode);
+            synchronized (WatchScanner.this) {
+                scanner = null;
+                profile = null;
+            }
+        }
+    };
+
+    private WatchScanner() {
+    }
+
+    /**
+     * Starts (or restarts with the new settings) a filtered scan for the watch, returns false
+     * if Bluetooth is off or the scan permission is missing.
+     */
+    public synchronized boolean start(Context context, ScanProfile newProfile) {
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(TAG, "BLUETOOTH_SCAN permission not granted. Cannot scan.");
+            return false;
+        }
+        BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        BluetoothAdapter adapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+        if (adapter == null || !adapter.isEnabled() || adapter.getBluetoothLeScanner() == null) {
+            Log.w(TAG, "Bluetooth is not available, cannot scan.");
+            return false;
+        }
+        if (profile == newProfile && scanner != null) {
+            return true;
+        }
+        stopInternal();
+
+        ScanFilter filter = new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(WatchUuids.SERVICE_UUID))
+                .build();
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(newProfile.scanMode);
+        // without offloaded batching the stack would buffer in software and still wake us up
+        if (newProfile.reportDelayMs > 0 && adapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(newProfile.reportDelayMs);
+        }
+
+        try {
+            scanner = adapter.getBluetoothLeScanner();
+            scanner.startScan(Collections.singletonList(filter), settings.build(), scanCallback);
+            profile = newProfile;
+            Log.i(TAG, "Scanning with profile " + newProfile);
+            return true;
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException on startScan", e);
+            scanner = null;
+            return false;
+        }
+    }
+
+    public synchronized void stop() {
+        stopInternal();
+    }
+
+    public synchronized ScanProfile getProfile() {
+        return profile;
+    }
+
+    public synchronized String getStats() {
+        return "profile=" + profile + " results=" + resultCount + " batches=" + batchCount;
+    }
+
+    private void stopInternal() {
+        if (scanner == null) {
+            return;
+        }
+        try {
+            // flush anything the controller is still holding before it is thrown away
+            scanner.flushPendingScanResults(scanCallback);
+            scanner.stopScan(scanCallback);
+        } catch (SecurityException | IllegalStateException e) {
+            // IllegalStateException is thrown once the adapter is already off
+            Log.w(TAG, "Could not stop scan cleanly", e);
+        }
+        scanner = null;
+        profile = null;
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.UUID;
+
+/**
+ * The watch's GATT layout, parsed once. These have to match the defines at the top of
+ * BLEServer.ino; WatchUuidsTest compares them against the firmware source and BLEGATT
+ * checks them against the watch's service table on every discovery.
+ */
+public final class WatchUuids {
+    public static final String SERVICE = "5ac9bc5e-f8ba-48d4-8908-98b80b566e49";
+    public static final String COMMAND = "bcca872f-1a3e-4491-b8ec-bfc93c5dd91a";
+    public static final String NOTIFICATION_UPDATE = "bcca872f-1a3e-4491-b8ec-bfc93c5dd901";
+
+    public static final UUID SERVICE_UUID = UUID.fromString(SERVICE);
+    public static final UUID COMMAND_UUID = UUID.fromString(COMMAND);
+    public static final UUID NOTIFICATION_UPDATE_UUID = UUID.fromString(NOTIFICATION_UPDATE);
+    // standard client characteristic configuration descriptor
+    public static final UUID CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private WatchUuids() {
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Versioned, length prefixed binary framing for phone to watch responses. The text
+ * protocol (';' separated fields, '\n' terminated records) stays the default and the
+ * watch switches a connection over with "/format binary".
+ * <pre>
+ * frame  := version:u8 flags:u8 type:u8 bodyLength:varint body [crc16:u16 big endian]
+ * body   := recordCount:varint record*
+ * record := fieldCount:varint (length:varint utf8Bytes)*
+ * </pre>
+ * Varints are unsigned LEB128. The CRC is CRC-16/CCITT-FALSE over everything before it
+ * and is only present when {@link #FLAG_CRC} is set. The matching parser lives in
+ * ESP32_BLE_Example_Code_V2/BLEServer.ino.
+ */
+public class WireFormat {
+    public static final int VERSION = 1;
+
+    public static final int FLAG_CRC = 0x01;
+
+    public static final int TYPE_TEXT = 0;
+    public static final int TYPE_NOTIFICATION_LIST = 1;
+    public static final int TYPE_CALENDAR = 2;
+    public static final int TYPE_NOW_PLAYING = 3;
+    public static final int TYPE_NOTIFICATION_DELTA = 4;
+    public static final int TYPE_CALENDAR_PAGE = 5;
+
+    public static final String FORMAT_TEXT = "text";
+    public static final String FORMAT_BINARY = "binary";
+
+    private static final int HEADER_SIZE = 3;
+    private static final int CRC_SIZE = 2;
+
+    private WireFormat() {
+    }
+
+    //builds one frame, records are appended with beginRecord() followed by one field() per field
+    public static final class Encoder {
+        private final int type;
+        private final boolean crc;
+        private byte[] body = new byte[256];
+        private int bodyLength = 0;
+        private int recordCount = 0;
+        private int fieldsLeft = 0;
+
+        public Encoder(int type, boolean crc) {
+            this.type = type;
+            this.crc = crc;
+        }
+
+        public Encoder beginRecord(int fieldCount) {
+            if (fieldsLeft != 0) {
+                throw new IllegalStateException(fieldsLeft + " fields missing from previous record");
+            }
+            recordCount++;
+            fieldsLeft = fieldCount;
+            writeVarint(fieldCount);
+            return this;
+        }
+
+        public Encoder field(String value) {
+            return field(value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        }
+
+        public Encoder field(byte[] value) {
+            if (fieldsLeft-- <= 0) {
+                throw new IllegalStateException("More fields than declared for record " + recordCount);
+            }
+            writeVarint(value.length);
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, body, bodyLength, value.length);
+            bodyLength += value.length;
+            return this;
+        }
+
+        public Encoder record(String... fields) {
+            beginRecord(fields.length);
+            for (String field : fields) {
+                field(field);
+            }
+            return this;
+        }
+
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        public byte[] finish() {
+            if (fieldsLeft != 0) {
+                throw new IllegalStateException(fieldsLeft + " fields missing from last record");
+            }
+            int countSize = varintSize(recordCount);
+            int fullBodyLength = countSize + bodyLength;
+            int size = HEADER_SIZE + varintSize(fullBodyLength) + fullBodyLength + (crc ? CRC_SIZE : 0);
+            byte[] frame = new byte[size];
+            int pos = 0;
+            frame[pos++] = (byte) VERSION;
+            frame[pos++] = (byte) (crc ? FLAG_CRC : 0);
+            frame[pos++] = (byte) type;
+            pos = putVarint(frame, pos, fullBodyLength);
+            pos = putVarint(frame, pos, recordCount);
+            System.arraycopy(body, 0, frame, pos, bodyLength);
+            pos += bodyLength;
+            if (crc) {
+                int value = crc16(frame, 0, pos);
+                frame[pos++] = (byte) (value >> 8);
+                frame[pos] = (byte) value;
+            }
+            return frame;
+        }
+
+        private void writeVarint(int value) {
+            ensureCapacity(5);
+            bodyLength = putVarint(body, bodyLength, value);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (bodyLength + extra > body.length) {
+                body = Arrays.copyOf(body, Math.max(body.length * 2, bodyLength + extra));
+            }
+        }
+    }
+
+    public static final class Frame {
+        public final int version;
+        public final int flags;
+        public final int type;
+        public final List<String[]> records;
+
+        Frame(int version, int flags, int type, List<String[]> records) {
+            this.version = version;
+            this.flags = flags;
+            this.type = type;
+            this.records = records;
+        }
+    }
+
+    //returns the total size of the frame starting at offset, or -1 if not enough bytes have
+    //arrived yet to tell
+    public static int frameLength(byte[] data, int offset, int length) {
+        if (length < HEADER_SIZE + 1) {
+            return -1;
+        }
+        int[] pos = {offset + HEADER_SIZE};
+        long bodyLength = readVarint(data, pos, offset + length);
+        if (bodyLength < 0) {
+            return -1;
+        }
+        boolean crc = (data[offset + 1] & FLAG_CRC) != 0;
+        //a corrupt length can be up to 35 bits, report it as a frame that never fits
+        return (int) Math.min(Integer.MAX_VALUE, pos[0] - offset + bodyLength + (crc ? CRC_SIZE : 0));
+    }
+
+    public static Frame decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    public static Frame decode(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int total = frameLength(data, offset, length);
+        if (total < 0 || total > length) {
+            throw new IllegalArgumentException("Truncated frame, " + length + " bytes available");
+        }
+        int version = data[offset] & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported frame version " + version);
+        }
+        int flags = data[offset + 1] & 0xFF;
+        int type = data[offset + 2] & 0xFF;
+        if ((flags & FLAG_CRC) != 0) {
+            int crcOffset = offset + total - CRC_SIZE;
+            int expected = ((data[crcOffset] & 0xFF) << 8) | (data[crcOffset + 1] & 0xFF);
+            int actual = crc16(data, offset, total - CRC_SIZE);
+            if (expected != actual) {
+                throw new IllegalArgumentException("CRC mismatch, expected " + expected + " got " + actual);
+            }
+            end = crcOffset;
+        } else {
+            end = offset + total;
+        }
+
+        int[] pos = {offset + HEADER_SIZE};
+        readVarint(data, pos, end);
+        int recordCount = readCount(data, pos, end, "Record count");
+        List<String[]> records = new ArrayList<>(Math.min(recordCount, 1024));
+        for (int r = 0; r < recordCount; r++) {
+            int fieldCount = readCount(data, pos, end, "Field count");
+            String[] fields = new String[fieldCount];
+            for (int f = 0; f < fieldCount; f++) {
+                int fieldLength = readCount(data, pos, end, "Field length");
+                fields[f] = new String(data, pos[0], fieldLength, StandardCharsets.UTF_8);
+                pos[0] += fieldLength;
+            }
+            records.add(fields);
+        }
+        return new Frame(version, flags, type, records);
+    }
+
+    //CRC-16/CCITT-FALSE, poly 0x1021, init 0xFFFF, cheap enough to run on the watch
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int putVarint(byte[] target, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[pos++] = (byte) value;
+        return pos;
+    }
+
+    //returns -1 if the varint is not complete before end, pos[0] is advanced past it otherwise
+    static long readVarint(byte[] data, int[] pos, int end) {
+        long value = 0;
+        int shift = 0;
+        int p = pos[0];
+        while (p < end && shift < 35) {
+            int b = data[p++] & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                pos[0] = p;
+                return value;
+            }
+            shift += 7;
+        }
+        return -1;
+    }
+
+    private static long readChecked(byte[] data, int[] pos, int end) {
+        long value = readVarint(data, pos, end);
+        if (value < 0) {
+            throw new IllegalArgumentException("Truncated varint at " + pos[0]);
+        }
+        return value;
+    }
+
+    //a count or length, every record, field and byte it covers takes at least one byte of what is left
+    private static int readCount(byte[] data, int[] pos, int end, String what) {
+        long value = readChecked(data, pos, end);
+        if (value > end - pos[0]) {
+            throw new IllegalArgumentException(what + " " + value + " runs past end of frame");
+        }
+        return (int) value;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.Assert.*;
+
+public class CalendarRowMapperTest {
+    private static final ZoneId ZONE = ZoneId.of("America/New_York");
+
+    //the per-row conversion CalendarReader did before CalendarRowMapper, kept as the reference
+    private static String legacyFormatTime(String millis) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("hh:mma");
+        try {
+            return Instant.ofEpochSecond(Long.parseLong(millis) / 1000)
+                    .atZone(ZoneId.of(ZONE.getId()))
+                    .format(formatter);
+        } catch (NumberFormatException e) {
+            return "";
+        }
+    }
+
+    //synthetic instance rows: eventId, begin, title, description, dtStart, end, location
+    private static Object[][] syntheticRows(int count) {
+        long base = 1760000000000L;
+        Object[][] rows = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            long start = base + i * 15 * 60 * 1000L;
+            rows[i] = new Object[]{(long) i / 3, start, "Meeting " + i, i % 4 == 0 ? null : "Notes\nline " + i,
+                    Long.toString(start), Long.toString(start + 30 * 60 * 1000L), i % 5 == 0 ? null : "Room " + (i % 12)};
+        }
+        return rows;
+    }
+
+    private static String mapAll(Object[][] rows) {
+        CalendarRowMapper mapper = new CalendarRowMapper(ZONE);
+        StringBuilder out = new StringBuilder();
+        CalendarRowMapper.EventSink sink = (key, startDate, title, description, startTime, endTime, location) ->
+                out.append(key).append('|').append(title).append(';').append(description).append(';')
+                        .append(startTime).append(';').append(endTime).append(';').append(location).append('\n');
+        for (Object[] row : rows) {
+            mapper.map((Long) row[0], (Long) row[1], (String) row[2], (String) row[3], (String) row[4],
+                    (String) row[5], (String) row[6], sink);
+        }
+        return out.toString();
+    }
+
+    private static String legacyAll(Object[][] rows) {
+        StringBuilder out = new StringBuilder();
+        for (Object[] row : rows) {
+            out.append(row[0]).append(':').append(row[1]).append('|')
+                    .append(row[2]).append(';')
+                    .append(row[3] != null ? ((String) row[3]).replace("\n", " ") : "").append(';')
+                    .append(legacyFormatTime((String) row[4])).append(';')
+                    .append(legacyFormatTime((String) row[5])).append(';')
+                    .append(row[6] != null ? row[6] : "").append('\n');
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void mapsRow() {
+        CalendarRowMapper mapper = new CalendarRowMapper(ZoneId.of("UTC"));
+        String[] result = new String[6];
+        mapper.map(42, 1000, "Stand\nup", null, "32400000", "not a time", "HQ",
+                (key, startDate, title, description, startTime, endTime, location) -> {
+                    result[0] = key + "@" + startDate;
+                    result[1] = title;
+                    result[2] = description;
+                    result[3] = startTime;
+                    result[4] = endTime;
+                    result[5] = location;
+                });
+        assertArrayEquals(new String[]{"42:1000@1970-01-01", "Stand up", "", "09:00AM", "", "HQ"}, result);
+        assertEquals(1, mapper.getParseErrors());
+    }
+
+    @Test
+    public void matchesLegacyConversion() {
+        Object[][] rows = syntheticRows(500);
+        assertEquals(legacyAll(rows), mapAll(rows));
+    }
+}
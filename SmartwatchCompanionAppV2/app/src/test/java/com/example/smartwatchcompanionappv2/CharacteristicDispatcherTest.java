@@ -0,0 +1,53 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class CharacteristicDispatcherTest {
+
+    @Test
+    public void routesByUuid() {
+        List<String> commands = new ArrayList<>();
+        List<String> updates = new ArrayList<>();
+        CharacteristicDispatcher dispatcher = new CharacteristicDispatcher()
+                .register(WatchUuids.COMMAND_UUID, true, value -> commands.add(new String(value)))
+                .register(WatchUuids.NOTIFICATION_UPDATE_UUID, false, value -> updates.add(new String(value)));
+
+        // a freshly parsed UUID, like the one on a characteristic, finds the same handler
+        assertTrue(dispatcher.dispatch(UUID.fromString(WatchUuids.COMMAND), "/notifications".getBytes()));
+        assertTrue(dispatcher.dispatch(WatchUuids.NOTIFICATION_UPDATE_UUID, "x".getBytes()));
+        assertFalse(dispatcher.dispatch(WatchUuids.SERVICE_UUID, "y".getBytes()));
+
+        assertEquals(Collections.singletonList("/notifications"), commands);
+        assertEquals(Collections.singletonList("x"), updates);
+        assertEquals(1, dispatcher.getUnhandledCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsDuplicateRegistration() {
+        new CharacteristicDispatcher()
+                .register(WatchUuids.COMMAND_UUID, true, value -> { })
+                .register(WatchUuids.COMMAND_UUID, true, value -> { });
+    }
+
+    @Test
+    public void reportsMissingRequiredCharacteristics() {
+        CharacteristicDispatcher dispatcher = new CharacteristicDispatcher()
+                .register(WatchUuids.COMMAND_UUID, true, value -> { })
+                .register(WatchUuids.NOTIFICATION_UPDATE_UUID, false, value -> { });
+
+        assertTrue(dispatcher.missing(Arrays.asList(WatchUuids.COMMAND_UUID, WatchUuids.NOTIFICATION_UPDATE_UUID)).isEmpty());
+        // optional characteristics are not reported
+        assertTrue(dispatcher.missing(Collections.singletonList(WatchUuids.COMMAND_UUID)).isEmpty());
+        // the old heart rate UUIDs the app used to look for
+        UUID heartRate = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+        assertEquals(Collections.singletonList(WatchUuids.COMMAND_UUID), dispatcher.missing(Collections.singletonList(heartRate)));
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    @Test
+    public void deduplicatesByAddress() {
+        DeviceRegistry<String> registry = new DeviceRegistry<>();
+        assertTrue(registry.onAdvertisement("AA:BB", "watch", -60, 0));
+        assertFalse(registry.onAdvertisement("AA:BB", "watch", -70, 100));
+        assertTrue(registry.onAdvertisement("CC:DD", "tag", -80, 100));
+        assertEquals(2, registry.size());
+
+        DeviceRegistry.Record<String> record = registry.get("AA:BB");
+        assertEquals(2, record.getAdvertisementCount());
+        assertEquals(-70, record.getLastRssi());
+        assertEquals(100, record.getLastSeen());
+    }
+
+    @Test
+    public void smoothsRssi() {
+        DeviceRegistry<String> registry = new DeviceRegistry<>();
+        registry.onAdvertisement("AA:BB", "watch", -60, 0);
+        //a single deep fade only moves the smoothed value by RSSI_SMOOTHING of the difference
+        registry.onAdvertisement("AA:BB", "watch", -100, 1);
+        assertEquals(-70, registry.get("AA:BB").getSmoothedRssi());
+        for (int i = 0; i < 50; i++) {
+            registry.onAdvertisement("AA:BB", "watch", -80, 2 + i);
+        }
+        assertEquals(-80, registry.get("AA:BB").getSmoothedRssi());
+    }
+
+    @Test
+    public void agesOutStaleDevices() {
+        DeviceRegistry<String> registry = new DeviceRegistry<>(1000);
+        registry.onAdvertisement("AA:BB", "watch", -60, 0);
+        registry.onAdvertisement("CC:DD", "tag", -60, 0);
+        registry.takeChanged();
+        registry.onAdvertisement("AA:BB", "watch", -60, 900);
+
+        assertEquals(0, registry.ageOut(1000));
+        assertFalse(registry.takeChanged());
+        assertEquals(1, registry.ageOut(1500));
+        assertTrue(registry.takeChanged());
+        assertNull(registry.get("CC:DD"));
+        assertNotNull(registry.get("AA:BB"));
+    }
+
+    @Test
+    public void snapshotSortedBySignal() {
+        DeviceRegistry<String> registry = new DeviceRegistry<>();
+        registry.onAdvertisement("1", "far", -90, 0);
+        registry.onAdvertisement("2", "near", -40, 0);
+        registry.onAdvertisement("3", "mid", -65, 0);
+        assertEquals(Arrays.asList("near", "mid", "far"), registry.devices());
+    }
+}
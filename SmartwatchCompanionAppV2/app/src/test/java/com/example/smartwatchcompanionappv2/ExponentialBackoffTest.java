@@ -0,0 +1,41 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ExponentialBackoffTest {
+
+    @Test
+    public void growsWithinJitterBounds() {
+        ExponentialBackoff backoff = new ExponentialBackoff(1000, 60000, new Random(7));
+        long ceiling = 1000;
+        for (int attempt = 0; attempt < 12; attempt++) {
+            long delay = backoff.nextDelayMs();
+            assertTrue("attempt " + attempt + " delay " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            ceiling = Math.min(60000, ceiling * 2);
+        }
+        assertEquals(12, backoff.getAttempt());
+    }
+
+    @Test
+    public void capsLongOutages() {
+        ExponentialBackoff backoff = new ExponentialBackoff(1000, 60000, new Random(1));
+        for (int attempt = 0; attempt < 100; attempt++) {
+            assertTrue(backoff.nextDelayMs() <= 60000);
+        }
+    }
+
+    @Test
+    public void resetStartsOver() {
+        ExponentialBackoff backoff = new ExponentialBackoff(1000, 60000, new Random(3));
+        for (int attempt = 0; attempt < 8; attempt++) {
+            backoff.nextDelayMs();
+        }
+        backoff.reset();
+        assertEquals(0, backoff.getAttempt());
+        assertTrue(backoff.nextDelayMs() <= 1000);
+    }
+}
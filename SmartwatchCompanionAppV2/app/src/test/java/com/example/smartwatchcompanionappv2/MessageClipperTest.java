@@ -0,0 +1,85 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class MessageClipperTest {
+
+    private static String reassemble(MessageClipper clipper, int maxChunks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int chunks = 0;
+        while (!clipper.messageComplete()) {
+            byte[] chunk = clipper.getNextBytes();
+            assertTrue("chunk larger than clip size", chunk.length <= clipper.getClipSize());
+            assertTrue("empty chunk", chunk.length > 0);
+            //every chunk must decode on its own, so no character was split
+            String decoded = new String(chunk, StandardCharsets.UTF_8);
+            assertArrayEquals(chunk, decoded.getBytes(StandardCharsets.UTF_8));
+            out.write(chunk, 0, chunk.length);
+            assertTrue("too many chunks", ++chunks <= maxChunks);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void exactMultipleOfClipSize_completes() {
+        MessageClipper clipper = new MessageClipper("0123456789abcdef0123456789abcdef", 16);
+        assertEquals("0123456789abcdef", clipper.getNextMessage());
+        assertEquals("0123456789abcdef", clipper.getNextMessage());
+        assertTrue(clipper.messageComplete());
+    }
+
+    @Test
+    public void emptyMessage_isCompleteImmediately() {
+        assertTrue(new MessageClipper("").messageComplete());
+    }
+
+    @Test
+    public void multiByteCharacters_neverSplit() {
+        String message = "caf\u00e9 \u20ac100 \ud83d\ude00 na\u00efve \u65e5\u672c\u8a9e";
+        for (int clipSize = MessageClipper.MIN_CLIP_SIZE; clipSize < 20; clipSize++) {
+            assertEquals(message, reassemble(new MessageClipper(message, clipSize), 100));
+        }
+    }
+
+    @Test
+    public void chunkSizeFollowsMtu() {
+        assertEquals(20, MessageClipper.chunkSizeForMtu(23));
+        assertEquals(244, MessageClipper.chunkSizeForMtu(247));
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append('a');
+        }
+        MessageClipper clipper = MessageClipper.forMtu(sb.toString(), 247);
+        assertEquals(sb.toString(), reassemble(clipper, 5));
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        MessageClipper first = new MessageClipper("first message");
+        ByteBuffer buffer = first.getBuffer();
+        first.getNextMessage();
+        first.release();
+        assertNull(first.getBuffer());
+        //the most recently released buffer that fits is handed out first
+        MessageClipper second = new MessageClipper("second");
+        assertSame(buffer, second.getBuffer());
+        assertEquals("second", reassemble(second, 1));
+    }
+
+    @Test
+    public void binaryPayloadIsNotPooled() {
+        byte[] payload = {1, 2, 3, 4, 5};
+        MessageClipper binary = new MessageClipper(payload, 4);
+        ByteBuffer buffer = binary.getBuffer();
+        binary.release();
+        //the caller still owns the wrapped array, it must never be encoded over
+        assertNotSame(buffer, new MessageClipper("reuse me").getBuffer());
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void bucketsCoverTheirBounds() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789L, Long.MAX_VALUE}) {
+            int bucket = Metrics.Histogram.bucketOf(value);
+            assertTrue("value " + value, value <= Metrics.Histogram.upperBound(bucket));
+            if (bucket > 0) {
+                assertTrue("value " + value, value > Metrics.Histogram.upperBound(bucket - 1));
+            }
+        }
+        assertEquals(Long.MAX_VALUE, Metrics.Histogram.upperBound(Metrics.Histogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentilesStayWithinAnEighth() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMean());
+        assertEquals(1000, histogram.getMax());
+        assertTrue(histogram.percentile(0.5) >= 500 && histogram.percentile(0.5) <= 500 * 9 / 8);
+        assertTrue(histogram.percentile(0.95) >= 950 && histogram.percentile(0.95) <= 1000);
+        assertEquals(1000, histogram.percentile(1.0));
+        assertEquals(1, histogram.percentile(0));
+    }
+
+    @Test
+    public void emptyAndResetReportZero() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(0, histogram.getMean());
+        histogram.record(-5);
+        histogram.record(40);
+        assertEquals(0, histogram.percentile(0.5));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void recordsFromManyThreads() throws InterruptedException {
+        Metrics.Histogram histogram = new Metrics.Histogram("test");
+        Metrics.Counter counter = new Metrics.Counter("test");
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record(i + offset);
+                    counter.add(2);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(10002, histogram.getMax());
+        assertEquals(80000, counter.get());
+    }
+
+    @Test
+    public void registryReturnsTheSameMetric() {
+        assertSame(Metrics.counter("test.registry"), Metrics.counter("test.registry"));
+        assertSame(Metrics.NOTIFICATION_SYNC_MS, Metrics.histogram("notification.sync.ms"));
+        Metrics.counter("test.registry").add(3);
+        assertTrue(Metrics.dump().contains("test.registry 3\n"));
+        assertTrue(Metrics.dump().contains("gatt.operation.ms count="));
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.util.Objects;
+
+import static org.junit.Assert.*;
+
+public class NotificationEncoderTest {
+
+    //the multi-pass string building NLService used before NotificationEncoder, kept as the reference
+    private static String legacyEncode(String appName, String title, String text, String infoText, String subText,
+                                       String bigTitle, CharSequence emailBigText, String messages) {
+        String data = Objects.toString(appName, "") + ","
+                + Objects.toString(title, "").replace("\n", "").replace(";", ",") + ";"
+                + Objects.toString(text, "").replace("\n", "").replace(";", ",") + ";"
+                + Objects.toString(infoText, "").replace("\n", "").replace(";", ",") + ";"
+                + Objects.toString(subText, "").replace("\n", "").replace(";", ",") + ";"
+                + Objects.toString(bigTitle, "").replace("\n", "").replace(";", ",") + ";";
+        data = data.replaceAll("[^\\p{ASCII}]", "");
+        if (emailBigText != null) {
+            String shortened = emailBigText.length() > 240
+                    ? emailBigText.toString().substring(0, 240) + "..."
+                    : emailBigText.toString();
+            data += shortened.replace("\n", "").replace(";", ",");
+        } else if (messages != null) {
+            data += messages;
+        }
+        return data;
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static final String[][] CORPUS = {
+            {"Messages", "Alice", "See you at 5", null, null, null},
+            {"Gmail", "Bob; Carol", "Re: lunch\nmenu", "2 new", "work@example.com", "Inbox"},
+            {null, null, null, null, null, null},
+            {"", "", "", "", "", ""},
+            {"Caf\u00e9 App", "na\u00efve \u00fcber", "\u65e5\u672c\u8a9e text", "\u20ac5", "emoji \ud83d\ude00 here", "tail\u00a0space"},
+            {"App;Name", "a\n;b\n;c", ";;;", "\n\n", "x;\ny", "end;"},
+            {"Weird\nApp", "tab\there", "cr\rhere", "\u007f del", "\u0080 first non-ascii", "\ud83d lone surrogate"},
+    };
+
+    @Test
+    public void matchesLegacyFormat_plainFields() {
+        NotificationEncoder encoder = new NotificationEncoder();
+        for (String[] f : CORPUS) {
+            assertEquals(legacyEncode(f[0], f[1], f[2], f[3], f[4], f[5], null, null),
+                    encoder.encode(f[0], f[1], f[2], f[3], f[4], f[5], null, null));
+        }
+    }
+
+    @Test
+    public void matchesLegacyFormat_emailBigText() {
+        NotificationEncoder encoder = new NotificationEncoder();
+        String[] bigTexts = {
+                "",
+                "short body; with\nnewline",
+                repeat("0123456789", 24),
+                repeat("0123456789", 24) + "x",
+                repeat("line;\n", 100),
+                repeat("\u00e9", 300),
+        };
+        for (String[] f : CORPUS) {
+            for (String bigText : bigTexts) {
+                assertEquals(legacyEncode(f[0], f[1], f[2], f[3], f[4], f[5], bigText, null),
+                        encoder.encode(f[0], f[1], f[2], f[3], f[4], f[5], bigText, null));
+            }
+        }
+    }
+
+    @Test
+    public void matchesLegacyFormat_messages() {
+        NotificationEncoder encoder = new NotificationEncoder();
+        for (String[] f : CORPUS) {
+            for (String messages : new String[]{"", "raw;\nmessages \u00e9"}) {
+                assertEquals(legacyEncode(f[0], f[1], f[2], f[3], f[4], f[5], null, messages),
+                        encoder.encode(f[0], f[1], f[2], f[3], f[4], f[5], null, messages));
+            }
+        }
+    }
+
+    @Test
+    public void pinnedRecords() {
+        NotificationEncoder encoder = new NotificationEncoder();
+        assertEquals("Messages,Alice;See you at 5;;;;",
+                encoder.encode("Messages", "Alice", "See you at 5", null, null, null, null, null));
+        assertEquals("Gmail,Bob, Carol;Re: lunchmenu;2 new;work@example.com;Inbox;body, text",
+                encoder.encode("Gmail", "Bob; Carol", "Re: lunch\nmenu", "2 new", "work@example.com", "Inbox", "body;\n text", null));
+        assertEquals("Caf App,nave ;;;;;",
+                encoder.encode("Caf\u00e9 App", "na\u00efve \ud83d\ude00", null, null, null, null, null, null));
+    }
+
+    @Test
+    public void shortenString() {
+        assertEquals("", NotificationEncoder.shortenString(null));
+        assertEquals("abc", NotificationEncoder.shortenString("abc"));
+        String longText = repeat("a", 241);
+        assertEquals(repeat("a", 240) + "...", NotificationEncoder.shortenString(longText));
+    }
+}
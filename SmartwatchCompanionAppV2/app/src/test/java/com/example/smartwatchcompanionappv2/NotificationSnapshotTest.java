@@ -0,0 +1,43 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NotificationSnapshotTest {
+
+    @Test
+    public void sendsOnlyChanges() {
+        NotificationSnapshot snapshot = new NotificationSnapshot();
+        assertEquals(NotificationSnapshot.DELTA_ADD, snapshot.posted("a", "Chat,Hi;"));
+        assertNull(snapshot.posted("a", "Chat,Hi;"));
+        assertEquals(NotificationSnapshot.DELTA_UPDATE, snapshot.posted("a", "Chat,Hi again;"));
+        assertEquals(NotificationSnapshot.DELTA_REMOVE, snapshot.removed("a"));
+        assertNull(snapshot.removed("a"));
+        assertEquals(0, snapshot.size());
+    }
+
+    @Test
+    public void sendsEverythingWhileStale() {
+        NotificationSnapshot snapshot = new NotificationSnapshot();
+        snapshot.posted("a", "Chat,Hi;");
+        snapshot.invalidate();
+        //the watch may never have seen these, so they go out again
+        assertEquals(NotificationSnapshot.DELTA_UPDATE, snapshot.posted("a", "Chat,Hi;"));
+        assertEquals(NotificationSnapshot.DELTA_UPDATE, snapshot.posted("a", "Chat,Hi;"));
+        assertEquals(NotificationSnapshot.DELTA_REMOVE, snapshot.removed("b"));
+        assertTrue(snapshot.isStale());
+    }
+
+    @Test
+    public void fullListMakesItCurrentAgain() {
+        NotificationSnapshot snapshot = new NotificationSnapshot();
+        snapshot.posted("a", "Chat,Hi;");
+        snapshot.invalidate();
+        snapshot.clear();
+        assertFalse(snapshot.isStale());
+        assertEquals(NotificationSnapshot.DELTA_ADD, snapshot.posted("a", "Chat,Hi;"));
+        assertNull(snapshot.posted("a", "Chat,Hi;"));
+        assertNull(snapshot.removed("b"));
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OperationSequenceTest {
+
+    @Test
+    public void matchesTheOperationInFlight() {
+        OperationSequence sequence = new OperationSequence();
+        assertFalse(sequence.matches("writeCharacteristic", sequence.arrival()));
+        sequence.start("writeCharacteristic");
+        assertTrue(sequence.matches("writeCharacteristic", sequence.arrival()));
+        assertFalse(sequence.matches("readCharacteristic", sequence.arrival()));
+    }
+
+    @Test
+    public void dropsLateCallbackAfterTimeout() {
+        OperationSequence sequence = new OperationSequence();
+        sequence.start("writeCharacteristic");
+        //the first write times out and the queue starts the next one, the first write's
+        //callback came in just before that but is handled after
+        long late = sequence.arrival();
+        sequence.start("writeCharacteristic");
+        assertFalse(sequence.matches("writeCharacteristic", late));
+
+        long onTime = sequence.arrival();
+        assertTrue(sequence.matches("writeCharacteristic", onTime));
+    }
+
+    @Test
+    public void dropsLateCallbackForAnotherOperation() {
+        OperationSequence sequence = new OperationSequence();
+        sequence.start("requestMtu");
+        long late = sequence.arrival();
+        sequence.start("writeDescriptor");
+        assertFalse(sequence.matches("requestMtu", late));
+        assertFalse(sequence.matches("requestMtu", sequence.arrival()));
+    }
+
+    @Test
+    public void holdsTheQueueUntilTheLateCallback() {
+        OperationSequence sequence = new OperationSequence();
+        sequence.start("writeCharacteristic");
+        sequence.timedOut();
+        assertTrue(sequence.isAwaitingLate());
+        assertFalse(sequence.absorbLate("readCharacteristic"));
+        assertTrue(sequence.isAwaitingLate());
+        //the late write is swallowed instead of completing the next write of the stream
+        assertTrue(sequence.absorbLate("writeCharacteristic"));
+        assertFalse(sequence.isAwaitingLate());
+        assertFalse(sequence.absorbLate("writeCharacteristic"));
+    }
+
+    @Test
+    public void givingUpResumesTheQueue() {
+        OperationSequence sequence = new OperationSequence();
+        sequence.start("requestMtu");
+        sequence.timedOut();
+        sequence.giveUpOnLate();
+        assertFalse(sequence.isAwaitingLate());
+        assertFalse(sequence.absorbLate("requestMtu"));
+    }
+}
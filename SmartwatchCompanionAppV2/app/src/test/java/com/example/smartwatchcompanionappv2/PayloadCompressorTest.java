@@ -0,0 +1,74 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PayloadCompressorTest {
+
+    private static byte[] notificationList(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append("Messages,Alice;See you at ").append(i % 7).append(";;;;\n");
+            sb.append("Gmail,Bob;Re: lunch;2 new;work@example.com;Inbox;\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void roundTrip_repetitiveText() {
+        byte[] data = notificationList(200);
+        byte[] packed = PayloadCompressor.compress(data);
+        assertNotNull(packed);
+        assertTrue(PayloadCompressor.isCompressed(packed));
+        assertTrue(packed.length < data.length / 4);
+        assertArrayEquals(data, PayloadCompressor.decompress(packed));
+    }
+
+    @Test
+    public void roundTrip_runsAndBinaryFrames() {
+        byte[] run = new byte[5000];
+        assertArrayEquals(run, PayloadCompressor.decompress(PayloadCompressor.compress(run)));
+
+        WireFormat.Encoder encoder = new WireFormat.Encoder(WireFormat.TYPE_CALENDAR, true);
+        for (int i = 0; i < 50; i++) {
+            encoder.record("Standup " + i, "Mon 09:00", "caf\u00e9");
+        }
+        byte[] frame = encoder.finish();
+        assertArrayEquals(frame, PayloadCompressor.decompress(PayloadCompressor.compress(frame)));
+    }
+
+    @Test
+    public void roundTrip_randomSeeds() {
+        Random random = new Random(11);
+        for (int n = 0; n < 50; n++) {
+            // small alphabet so there are plenty of matches at every offset
+            byte[] data = new byte[64 + random.nextInt(9000)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) ('a' + random.nextInt(4));
+            }
+            byte[] packed = PayloadCompressor.compress(data);
+            assertNotNull(packed);
+            assertArrayEquals(data, PayloadCompressor.decompress(packed));
+        }
+    }
+
+    @Test
+    public void skipsShortAndIncompressible() {
+        assertNull(PayloadCompressor.compress("short".getBytes(StandardCharsets.UTF_8)));
+        byte[] noise = new byte[2000];
+        new Random(3).nextBytes(noise);
+        assertNull(PayloadCompressor.compress(noise));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedPayload_rejected() {
+        byte[] packed = PayloadCompressor.compress(notificationList(20));
+        byte[] truncated = new byte[packed.length - 3];
+        System.arraycopy(packed, 0, truncated, 0, truncated.length);
+        PayloadCompressor.decompress(truncated);
+    }
+}
@@ -0,0 +1,401 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * In-memory {@link BleTransport} with a virtual millisecond clock, so the sync pipeline
+ * can be run and timed without a phone or a watch.
+ * <p>
+ * The model: link layer packets only go out on connection events every
+ * {@link Config#connectionIntervalMs}, at most {@link Config#packetsPerEvent} per event
+ * and direction. An ATT PDU takes as many packets as {@link Config#linkPayload} requires.
+ * A lost packet is retransmitted in the next slot, the way the link layer does it, so
+ * loss costs time but never data. Acknowledged writes and reads complete one connection
+ * event after the request reached the watch, write-without-response completes as soon
+ * as its packets are out. {@link Config#latencyMs} is added to every delivery.
+ * Operations run one at a time like on GattOperationQueue, and a disconnect fails the
+ * operation in flight and everything queued behind it.
+ * <p>
+ * Nothing runs on its own: {@link #runUntilIdle} and {@link #runFor} advance the clock
+ * and deliver everything that is due. Single threaded.
+ */
+public class SimulatedLink implements BleTransport {
+    //GATT_CONN_TIMEOUT, what Android reports for a supervision timeout
+    public static final int STATUS_LINK_LOST = 0x08;
+    //GATT_INVALID_ATTRIBUTE_LENGTH, the value does not fit the MTU
+    public static final int STATUS_INVALID_LENGTH = 0x0D;
+    //L2CAP and ATT headers carried by every PDU
+    private static final int PDU_OVERHEAD = 4 + MessageClipper.ATT_HEADER_SIZE;
+
+    public static final class Config {
+        int mtu = 247;
+        long connectionIntervalMs = 30;
+        int packetsPerEvent = 4;
+        int linkPayload = 251;
+        long latencyMs = 0;
+        double lossRate = 0;
+        long seed = 1;
+
+        public Config mtu(int mtu) {
+            this.mtu = mtu;
+            return this;
+        }
+
+        public Config connectionIntervalMs(long connectionIntervalMs) {
+            this.connectionIntervalMs = connectionIntervalMs;
+            return this;
+        }
+
+        public Config packetsPerEvent(int packetsPerEvent) {
+            this.packetsPerEvent = packetsPerEvent;
+            return this;
+        }
+
+        //27 without data length extension, 251 with it
+        public Config linkPayload(int linkPayload) {
+            this.linkPayload = linkPayload;
+            return this;
+        }
+
+        public Config latencyMs(long latencyMs) {
+            this.latencyMs = latencyMs;
+            return this;
+        }
+
+        public Config lossRate(double lossRate) {
+            this.lossRate = lossRate;
+            return this;
+        }
+
+        public Config seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+    }
+
+    //the watch end of the link
+    public interface Peripheral {
+        void onWrite(UUID characteristic, byte[] value);
+
+        void onRead(UUID characteristic);
+
+        void onDisconnected();
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final int generation;
+        final Runnable action;
+
+        Event(long time, long sequence, int generation, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.generation = generation;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return time != other.time ? Long.compare(time, other.time) : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final class Operation {
+        final UUID characteristic;
+        final byte[] value;
+        final boolean withResponse;
+        final Completion done;
+
+        Operation(UUID characteristic, byte[] value, boolean withResponse, Completion done) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.withResponse = withResponse;
+            this.done = done;
+        }
+
+        boolean isRead() {
+            return value == null;
+        }
+    }
+
+    //one direction of the link, tracks which connection event the next packet can go out on
+    private final class Channel {
+        long event = -1;
+        int used = 0;
+
+        //time at which the last of the packets is out, starting with the first connection event at or after from
+        long transmit(long from, int packets) {
+            long t = Math.max(nextEvent(from), event);
+            int slots = t == event ? used : 0;
+            while (packets > 0) {
+                if (slots == config.packetsPerEvent) {
+                    t += config.connectionIntervalMs;
+                    slots = 0;
+                }
+                slots++;
+                packetsSent++;
+                if (random.nextDouble() < config.lossRate) {
+                    packetsLost++;
+                } else {
+                    packets--;
+                }
+            }
+            event = t;
+            used = slots;
+            return t;
+        }
+    }
+
+    private final Config config;
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final ArrayDeque<Operation> operations = new ArrayDeque<>();
+    private final Map<UUID, Boolean> characteristics = new HashMap<>();
+    private final Channel toWatch = new Channel();
+    private final Channel toPhone = new Channel();
+    private Peripheral peripheral;
+    private Receiver receiver;
+    private Operation current;
+    private long now = 0;
+    private long sequence = 0;
+    private int generation = 0;
+    private boolean connected = true;
+
+    private long packetsSent = 0;
+    private long packetsLost = 0;
+    private long bytesToWatch = 0;
+    private long operationsCompleted = 0;
+    private long operationsFailed = 0;
+
+    public SimulatedLink(Config config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+    }
+
+    public void setPeripheral(Peripheral peripheral) {
+        this.peripheral = peripheral;
+    }
+
+    //adds a characteristic the watch offers
+    public SimulatedLink addCharacteristic(UUID characteristic, boolean writeWithoutResponse) {
+        characteristics.put(characteristic, writeWithoutResponse);
+        return this;
+    }
+
+    public long now() {
+        return now;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * The watch notifies a value, it reaches the phone's receiver on a later connection event.
+     * Returns false if the link is down or the value does not fit the MTU.
+     */
+    public boolean notifyPhone(UUID characteristic, byte[] value) {
+        if (!connected || value.length > config.mtu - MessageClipper.ATT_HEADER_SIZE) {
+            return false;
+        }
+        long sent = toPhone.transmit(now, packets(value.length));
+        schedule(sent + config.latencyMs, () -> {
+            if (receiver != null) {
+                receiver.onValue(characteristic, value);
+            }
+        });
+        return true;
+    }
+
+    //drops the link now, everything in flight or queued fails
+    public void disconnect() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        generation++;
+        Operation failed = current;
+        current = null;
+        if (failed != null) {
+            finish(failed, STATUS_LINK_LOST);
+        }
+        while (!operations.isEmpty()) {
+            finish(operations.poll(), STATUS_LINK_LOST);
+        }
+        if (peripheral != null) {
+            peripheral.onDisconnected();
+        }
+    }
+
+    public void scheduleDisconnect(long atMs) {
+        schedule(atMs, this::disconnect);
+    }
+
+    //brings the link back, on the next connection event
+    public void reconnect() {
+        if (connected) {
+            return;
+        }
+        now = nextEvent(now + 1);
+        connected = true;
+        toWatch.event = -1;
+        toPhone.event = -1;
+    }
+
+    //delivers everything due, returns false if that took more than maxMs of virtual time
+    public boolean runUntilIdle(long maxMs) {
+        long limit = now + maxMs;
+        while (!events.isEmpty()) {
+            if (events.peek().time > limit) {
+                return false;
+            }
+            step();
+        }
+        return true;
+    }
+
+    public void runFor(long ms) {
+        long until = now + ms;
+        while (!events.isEmpty() && events.peek().time <= until) {
+            step();
+        }
+        now = until;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    public long getBytesToWatch() {
+        return bytesToWatch;
+    }
+
+    public String getStats() {
+        return "now=" + now + "ms packets=" + packetsSent + " lost=" + packetsLost + " bytesToWatch=" + bytesToWatch
+                + " operations=" + operationsCompleted + " failed=" + operationsFailed;
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public int getMtu() {
+        return config.mtu;
+    }
+
+    @Override
+    public boolean hasCharacteristic(UUID characteristic) {
+        return characteristics.containsKey(characteristic);
+    }
+
+    @Override
+    public boolean supportsWriteWithoutResponse(UUID characteristic) {
+        return Boolean.TRUE.equals(characteristics.get(characteristic));
+    }
+
+    @Override
+    public void write(UUID characteristic, byte[] value, boolean withResponse, Completion done) {
+        enqueue(new Operation(characteristic, value, withResponse, done));
+    }
+
+    @Override
+    public void read(UUID characteristic, Completion done) {
+        enqueue(new Operation(characteristic, null, true, done));
+    }
+
+    private void enqueue(Operation operation) {
+        if (!connected) {
+            finish(operation, STATUS_LINK_LOST);
+            return;
+        }
+        operations.add(operation);
+        if (current == null) {
+            dispatchNext();
+        }
+    }
+
+    private void dispatchNext() {
+        if (current != null || operations.isEmpty()) {
+            return;
+        }
+        final Operation operation = operations.poll();
+        if (!operation.isRead() && operation.value.length > config.mtu - MessageClipper.ATT_HEADER_SIZE) {
+            finish(operation, STATUS_INVALID_LENGTH);
+            dispatchNext();
+            return;
+        }
+        current = operation;
+        int length = operation.isRead() ? 0 : operation.value.length;
+        long sent = toWatch.transmit(now, packets(length));
+        if (!operation.isRead()) {
+            bytesToWatch += length;
+        }
+        long arrives = sent + config.latencyMs;
+        schedule(arrives, () -> {
+            if (peripheral != null) {
+                if (operation.isRead()) {
+                    peripheral.onRead(operation.characteristic);
+                } else {
+                    peripheral.onWrite(operation.characteristic, operation.value);
+                }
+            }
+        });
+        //a write command is done once it is out, requests wait for the response on a later event
+        long completes = operation.withResponse
+                ? toPhone.transmit(sent + config.connectionIntervalMs, 1) + config.latencyMs
+                : sent;
+        schedule(completes, () -> {
+            if (current == operation) {
+                current = null;
+                finish(operation, STATUS_SUCCESS);
+                dispatchNext();
+            }
+        });
+    }
+
+    private void finish(Operation operation, int status) {
+        if (status == STATUS_SUCCESS) {
+            operationsCompleted++;
+        } else {
+            operationsFailed++;
+        }
+        if (operation.done != null) {
+            operation.done.onComplete(status);
+        }
+    }
+
+    private int packets(int attValueLength) {
+        return Math.max(1, (attValueLength + PDU_OVERHEAD + config.linkPayload - 1) / config.linkPayload);
+    }
+
+    //the first connection event at or after t
+    private long nextEvent(long t) {
+        long interval = config.connectionIntervalMs;
+        return (t + interval - 1) / interval * interval;
+    }
+
+    private void schedule(long time, Runnable action) {
+        events.add(new Event(Math.max(time, now), sequence++, generation, action));
+    }
+
+    private void step() {
+        Event event = events.poll();
+        now = Math.max(now, event.time);
+        //anything still in flight when the link dropped is gone with it, scheduled disconnects included
+        if (event.generation == generation) {
+            event.action.run();
+        }
+    }
+}
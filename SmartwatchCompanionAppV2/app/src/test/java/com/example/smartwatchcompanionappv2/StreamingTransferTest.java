@@ -0,0 +1,104 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class StreamingTransferTest {
+    private static final UUID CHARACTERISTIC = WatchUuids.COMMAND_UUID;
+    private static final int REFUSED = -2;
+
+    //accepts the first acceptedWrites writes and holds their completions, refuses everything
+    //after that on the spot like GattTransport does once its characteristics are cleared
+    private static final class RefusingTransport implements BleTransport {
+        final int acceptedWrites;
+        final List<Completion> inFlight = new ArrayList<>();
+        int writes = 0;
+        int reads = 0;
+
+        RefusingTransport(int acceptedWrites) {
+            this.acceptedWrites = acceptedWrites;
+        }
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+        }
+
+        @Override
+        public int getMtu() {
+            return 23;
+        }
+
+        @Override
+        public boolean hasCharacteristic(UUID characteristic) {
+            return true;
+        }
+
+        @Override
+        public boolean supportsWriteWithoutResponse(UUID characteristic) {
+            return true;
+        }
+
+        @Override
+        public void write(UUID characteristic, byte[] value, boolean withResponse, Completion done) {
+            writes++;
+            if (writes <= acceptedWrites) {
+                inFlight.add(done);
+            } else {
+                done.onComplete(REFUSED);
+            }
+        }
+
+        @Override
+        public void read(UUID characteristic, Completion done) {
+            reads++;
+            done.onComplete(REFUSED);
+        }
+
+        void completeInFlight() {
+            List<Completion> pending = new ArrayList<>(inFlight);
+            inFlight.clear();
+            for (Completion completion : pending) {
+                completion.onComplete(STATUS_SUCCESS);
+            }
+        }
+    }
+
+    private static MessageClipper message() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append('x');
+        }
+        return new MessageClipper(sb.toString(), 20);
+    }
+
+    @Test
+    public void refusedMidStreamCompletesOnce() {
+        RefusingTransport transport = new RefusingTransport(2);
+        List<Integer> statuses = new ArrayList<>();
+        new StreamingTransfer(transport, CHARACTERISTIC, message(), statuses::add).start();
+        //the refused third chunk aborts the stream, nothing after it is written
+        assertEquals(3, transport.writes);
+        assertTrue(statuses.isEmpty());
+
+        transport.completeInFlight();
+        assertEquals(Collections.singletonList(REFUSED), statuses);
+        assertEquals(3, transport.writes);
+        assertEquals(0, transport.reads);
+    }
+
+    @Test
+    public void refusedFirstChunkCompletesOnce() {
+        RefusingTransport transport = new RefusingTransport(0);
+        List<Integer> statuses = new ArrayList<>();
+        new StreamingTransfer(transport, CHARACTERISTIC, message(), statuses::add).start();
+        assertEquals(Collections.singletonList(REFUSED), statuses);
+        assertEquals(1, transport.writes);
+        assertEquals(0, transport.reads);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TraceTest {
+
+    //the trace is process wide, every test only looks at what it added last
+    private static String[] lastLines(int count) {
+        String[] lines = Trace.dump().split("\n");
+        String[] last = new String[count];
+        for (int i = 0; i < count; i++) {
+            last[i] = lines[lines.length - count + i].substring(11);
+        }
+        return last;
+    }
+
+    @Test
+    public void decodesArguments() {
+        byte[] command = "/notifications".getBytes(StandardCharsets.UTF_8);
+        Trace.record(Trace.Event.CHARACTERISTIC_CHANGED, Trace.characteristic(WatchUuids.COMMAND_UUID),
+                command.length, Trace.text(command));
+        Trace.record(Trace.Event.CHARACTERISTIC_WRITE, Trace.characteristic(WatchUuids.NOTIFICATION_UPDATE_UUID), 133);
+        Trace.record(Trace.Event.DEVICE_FOUND, Trace.address("24:0a:C4:00:1b:FE"), -67);
+        Trace.record(Trace.Event.CHARACTERISTIC_CHANGED, Trace.characteristic(WatchUuids.CCCD_UUID), 2,
+                Trace.text(new byte[]{1, 'o', 'k'}));
+
+        assertArrayEquals(new String[]{
+                "changed command length=14 data=\"/notific\"",
+                "write notification_update status=133",
+                "device 24:0A:C4:00:1B:FE rssi=-67",
+                "changed 800000805f9b34fb length=2 data=\".ok\""}, lastLines(4));
+    }
+
+    @Test
+    public void keepsTheNewestRecords() {
+        for (int i = 0; i < Trace.CAPACITY + 10; i++) {
+            Trace.record(Trace.Event.RESPONSE_SENT, i, 1, 2);
+        }
+        String[] lines = Trace.dump().split("\n");
+        assertEquals(Trace.CAPACITY, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("response 10 bytes in 1 chunks, 2ms"));
+        assertTrue(lines[lines.length - 1], lines[lines.length - 1].startsWith("     0.000 "));
+    }
+
+    @Test
+    public void recordsFromManyThreads() throws InterruptedException {
+        long before = Trace.getRecordCount();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    Trace.record(Trace.Event.RESPONSE_FAILED, thread, i);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(before + 4000, Trace.getRecordCount());
+        for (String line : Trace.dump().split("\n")) {
+            assertTrue(line, line.contains("response"));
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs WatchLink end to end against the simulated link and the Java port of the watch's
+ * receive logic.
+ */
+public class WatchLinkSimulationTest {
+
+    private static final String SONG = "Song Title - Artist";
+
+    //the phone side: WatchLink plus "/notifications" and "/currentSong" handlers shaped like NLService and BLEGATT
+    private static final class Phone implements WatchLink.Listener {
+        final WatchLink link;
+        final String[][] notifications;
+        final NotificationEncoder encoder = new NotificationEncoder();
+        final List<Integer> statuses = new ArrayList<>();
+        final List<Boolean> streamed = new ArrayList<>();
+        int dropped = 0;
+
+        Phone(SimulatedLink simulatedLink, String[][] notifications) {
+            this.link = new WatchLink(simulatedLink, simulatedLink::now, this);
+            this.notifications = notifications;
+            simulatedLink.setReceiver((uuid, value) -> {
+                if (WatchUuids.COMMAND_UUID.equals(uuid)) {
+                    onCommand(new String(value, StandardCharsets.UTF_8));
+                }
+            });
+        }
+
+        void onCommand(String request) {
+            int requestId = WatchLink.requestId(request);
+            String command = WatchLink.stripRequestId(request);
+            if (link.handleProtocolCommand(requestId, command)) {
+                return;
+            }
+            if (command.startsWith("/currentSong")) {
+                link.sendMessage(requestId, SONG);
+            } else if (command.startsWith("/notifications")) {
+                if (link.isBinaryFormat()) {
+                    link.sendBytes(requestId, binaryList());
+                } else {
+                    link.sendMessage(requestId, textList());
+                }
+            }
+        }
+
+        String textList() {
+            StringBuilder sb = new StringBuilder();
+            for (String[] n : notifications) {
+                sb.append(encoder.encode(n[0], n[1], n[2], n[3], n[4], n[5], n[6], n[7])).append('\n');
+            }
+            return sb.toString();
+        }
+
+        byte[] binaryList() {
+            WireFormat.Encoder frame = new WireFormat.Encoder(WireFormat.TYPE_NOTIFICATION_LIST, true);
+            for (String[] n : notifications) {
+                frame.record(encoder.encodeFields(n[0], n[1], n[2], n[3], n[4], n[5], n[6], n[7]));
+            }
+            return frame.finish();
+        }
+
+        @Override
+        public void onSyncActivity() {
+        }
+
+        @Override
+        public void onResponseSent(int payloadBytes, int sentBytes, int chunks, boolean streamed, long elapsedMs, int status) {
+            statuses.add(status);
+            this.streamed.add(streamed);
+        }
+
+        @Override
+        public void onDropped(String what) {
+            dropped++;
+        }
+    }
+
+    private static SimulatedLink link(SimulatedLink.Config config, boolean writeWithoutResponse) {
+        return new SimulatedLink(config)
+                .addCharacteristic(WatchUuids.COMMAND_UUID, writeWithoutResponse)
+                .addCharacteristic(WatchUuids.NOTIFICATION_UPDATE_UUID, false);
+    }
+
+    private static String[][] notifications(int count) {
+        String[] apps = {"Messages", "Gmail", "WhatsApp", "Calendar", "Slack"};
+        String[] words = {"meeting", "lunch", "tomorrow", "review", "ok;", "see\nyou", "caf\u00e9", "at", "the", "office"};
+        Random random = new Random(count);
+        String[][] result = new String[count][];
+        for (int i = 0; i < count; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0, n = 3 + random.nextInt(25); w < n; w++) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            String app = apps[random.nextInt(apps.length)];
+            result[i] = new String[]{app, "Title " + i, text.toString(), null, null, null,
+                    app.equals("Gmail") ? text.toString() + text : null, null};
+        }
+        return result;
+    }
+
+    @Test
+    public void textListArrivesIntact() {
+        SimulatedLink simulatedLink = link(new SimulatedLink.Config(), true);
+        WatchSimulator watch = new WatchSimulator(simulatedLink);
+        Phone phone = new Phone(simulatedLink, notifications(100));
+
+        String received = watch.sendBLEText("/notifications");
+        //the watch returns on the read, its completion reaches the phone a connection event later
+        assertTrue(simulatedLink.runUntilIdle(1000));
+
+        assertEquals(phone.textList(), received);
+        assertEquals(Arrays.asList(BleTransport.STATUS_SUCCESS), phone.statuses);
+        assertEquals(Arrays.asList(true), phone.streamed);
+        assertTrue(watch.getLastLatencyMs() > 0);
+    }
+
+    @Test
+    public void binaryCompressedListSurvivesLoss() {
+        SimulatedLink simulatedLink = link(new SimulatedLink.Config().mtu(185).lossRate(0.1).latencyMs(5).seed(3), true);
+        WatchSimulator watch = new WatchSimulator(simulatedLink);
+        Phone phone = new Phone(simulatedLink, notifications(500));
+
+        assertTrue(watch.requestBinaryFormat());
+        assertTrue(watch.requestCompression());
+        WireFormat.Frame frame = watch.sendBLEFrame("/notifications");
+
+        assertNotNull(frame);
+        assertFalse(watch.isMalformedResponse());
+        assertEquals(WireFormat.TYPE_NOTIFICATION_LIST, frame.type);
+        assertEquals(500, frame.records.size());
+        String[] n = phone.notifications[42];
+        assertArrayEquals(phone.encoder.encodeFields(n[0], n[1], n[2], n[3], n[4], n[5], n[6], n[7]), frame.records.get(42));
+        assertTrue(simulatedLink.getPacketsLost() > 0);
+        //compression has to actually cut what goes over the air
+        assertTrue(simulatedLink.getBytesToWatch() < phone.binaryList().length);
+    }
+
+    @Test
+    public void streamingBeatsAcknowledgedWrites() {
+        SimulatedLink.Config config = new SimulatedLink.Config().mtu(247).connectionIntervalMs(15);
+        SimulatedLink acknowledgedLink = link(config, false);
+        WatchSimulator acknowledgedWatch = new WatchSimulator(acknowledgedLink);
+        Phone acknowledgedPhone = new Phone(acknowledgedLink, notifications(200));
+        SimulatedLink streamingLink = link(config, true);
+        WatchSimulator streamingWatch = new WatchSimulator(streamingLink);
+        Phone streamingPhone = new Phone(streamingLink, notifications(200));
+
+        assertNotNull(acknowledgedWatch.sendBLE("/notifications"));
+        assertNotNull(streamingWatch.sendBLE("/notifications"));
+        assertTrue(acknowledgedLink.runUntilIdle(1000));
+        assertTrue(streamingLink.runUntilIdle(1000));
+
+        assertEquals(Arrays.asList(false), acknowledgedPhone.streamed);
+        assertEquals(Arrays.asList(true), streamingPhone.streamed);
+        assertTrue(streamingWatch.getLastLatencyMs() + "ms vs " + acknowledgedWatch.getLastLatencyMs() + "ms",
+                streamingWatch.getLastLatencyMs() * 2 < acknowledgedWatch.getLastLatencyMs());
+        //the sync latency budget for 200 notifications at 15ms / MTU 247 with streaming
+        assertTrue(streamingWatch.getLastLatencyMs() + "ms", streamingWatch.getLastLatencyMs() < 500);
+    }
+
+    @Test
+    public void disconnectFailsTheTransferAndResetsNegotiation() {
+        SimulatedLink simulatedLink = link(new SimulatedLink.Config().mtu(23).connectionIntervalMs(50), true);
+        WatchSimulator watch = new WatchSimulator(simulatedLink);
+        Phone phone = new Phone(simulatedLink, notifications(10));
+        assertTrue(watch.requestBinaryFormat());
+
+        simulatedLink.scheduleDisconnect(simulatedLink.now() + 300);
+        assertNull(watch.sendBLE("/notifications"));
+        assertEquals(Arrays.asList(BleTransport.STATUS_SUCCESS, SimulatedLink.STATUS_LINK_LOST), phone.statuses);
+        assertFalse(watch.isBinaryFormat());
+
+        //BLEGATT resets the link on disconnect, the next connection starts over in text
+        phone.link.reset();
+        simulatedLink.reconnect();
+        assertEquals(phone.textList(), watch.sendBLEText("/notifications"));
+    }
+
+    @Test
+    public void deltasAreReassembledAcrossWrites() {
+        SimulatedLink simulatedLink = link(new SimulatedLink.Config().mtu(23), true);
+        WatchSimulator watch = new WatchSimulator(simulatedLink);
+        Phone phone = new Phone(simulatedLink, notifications(0));
+        long synced = Metrics.NOTIFICATION_SYNC_MS.getCount();
+
+        phone.link.sendNotificationDelta("posted", "0|com.example;1", "Messages,Hello;a longer body than one chunk;;;;",
+                simulatedLink.now());
+        simulatedLink.runUntilIdle(10000);
+        //timed once, when the last chunk is acknowledged
+        assertEquals(synced + 1, Metrics.NOTIFICATION_SYNC_MS.getCount());
+        assertTrue(watch.requestBinaryFormat());
+        phone.link.sendNotificationDelta("removed", "0|com.example;1", "");
+        phone.link.sendNotificationDelta("event_add", "12:1767225600000", "Standup;;2026-01-01;09:00AM;09:15AM;Room 4;");
+        simulatedLink.runUntilIdle(10000);
+
+        assertEquals(Arrays.asList(
+                "posted;0|com.example,1;Messages,Hello;a longer body than one chunk;;;;",
+                "removed;0|com.example;1;",
+                "event_add;12:1767225600000;Standup;;2026-01-01;09:00AM;09:15AM;Room 4;"),
+                watch.getNotificationEvents());
+        assertFalse(watch.isMalformedResponse());
+    }
+
+    @Test
+    public void parsesRequestIds() {
+        assertEquals(7, WatchLink.requestId("#7 /calendar"));
+        assertEquals("/calendar", WatchLink.stripRequestId("#7 /calendar"));
+        assertEquals(255, WatchLink.requestId("#255 /calendarPage 1 7"));
+        assertEquals("/calendarPage 1 7", WatchLink.stripRequestId("#255 /calendarPage 1 7"));
+        for (String command : new String[]{"/calendar", "#0 /calendar", "#256 /calendar", "#x /calendar", "#"}) {
+            assertEquals(command, WatchLink.NO_REQUEST, WatchLink.requestId(command));
+            assertEquals(command, WatchLink.stripRequestId(command));
+        }
+    }
+
+    @Test
+    public void multiplexedShortResponseOvertakesLongOne() {
+        SimulatedLink simulatedLink = link(new SimulatedLink.Config().mtu(185), true);
+        WatchSimulator watch = new WatchSimulator(simulatedLink);
+        Phone phone = new Phone(simulatedLink, notifications(300));
+        assertTrue(watch.requestMultiplexing());
+
+        int list = watch.sendRequest("/notifications");
+        int song = watch.sendRequest("/currentSong");
+        assertTrue(list != 0 && song != 0 && list != song);
+        assertTrue(watch.awaitRequests(WatchSimulator.REQUEST_TIMEOUT_MS));
+        long listLatency = watch.getRequestLatencyMs(list);
+        long songLatency = watch.getRequestLatencyMs(song);
+
+        assertEquals(phone.textList(), new String(watch.pollResponse(list), StandardCharsets.UTF_8));
+        assertEquals(SONG, new String(watch.pollResponse(song), StandardCharsets.UTF_8));
+        //asked second, but it only had to wait for its turn and not for the whole list
+        assertTrue(songLatency + "ms vs " + listLatency + "ms", songLatency * 4 < listLatency);
+        assertTrue(simulatedLink.runUntilIdle(1000));
+        assertEquals(Arrays.asList(BleTransport.STATUS_SUCCESS, BleTransport.STATUS_SUCCESS, BleTransport.STATUS_SUCCESS),
+                phone.statuses);
+    }
+
+    @Test
+    public void multiplexedBinaryCompressedResponsesSurviveLoss() {
+        SimulatedLink simulatedLink = link(new SimulatedLink.Config().mtu(100).lossRate(0.1).latencyMs(5).seed(5), true);
+        WatchSimulator watch = new WatchSimulator(simulatedLink);
+        Phone phone = new Phone(simulatedLink, notifications(200));
+        assertTrue(watch.requestBinaryFormat());
+        assertTrue(watch.requestCompression());
+        assertTrue(watch.requestMultiplexing());
+
+        int[] ids = new int[WatchSimulator.MAX_PENDING_REQUESTS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = watch.sendRequest(i % 2 == 0 ? "/notifications" : "/currentSong");
+        }
+        //every slot is taken
+        assertEquals(0, watch.sendRequest("/currentSong"));
+        assertTrue(watch.awaitRequests(WatchSimulator.REQUEST_TIMEOUT_MS));
+
+        for (int i = 0; i < ids.length; i++) {
+            byte[] response = watch.pollResponse(ids[i]);
+            if (i % 2 == 0) {
+                assertArrayEquals(phone.binaryList(), response);
+            } else {
+                assertEquals(SONG, new String(response, StandardCharsets.UTF_8));
+            }
+        }
+        assertFalse(watch.isMalformedResponse());
+        assertTrue(simulatedLink.getPacketsLost() > 0);
+        //blocking commands keep working on top of the requests
+        assertEquals(SONG, watch.sendBLEText("/currentSong"));
+    }
+
+    @Test
+    public void commandWithoutIdIsAnsweredThroughMultiplexer() {
+        SimulatedLink simulatedLink = link(new SimulatedLink.Config().mtu(100).seed(7), true);
+        WatchSimulator watch = new WatchSimulator(simulatedLink);
+        Phone phone = new Phone(simulatedLink, notifications(20));
+        assertTrue(watch.requestBinaryFormat());
+        assertTrue(watch.requestCompression());
+        assertTrue(watch.requestMultiplexing());
+        List<byte[]> writes = new ArrayList<>();
+        simulatedLink.setPeripheral(new SimulatedLink.Peripheral() {
+            @Override
+            public void onWrite(UUID characteristic, byte[] value) {
+                writes.add(value);
+                watch.onWrite(characteristic, value);
+            }
+
+            @Override
+            public void onRead(UUID characteristic) {
+                watch.onRead(characteristic);
+            }
+
+            @Override
+            public void onDisconnected() {
+                watch.onDisconnected();
+            }
+        });
+
+        //the compressed frame's pieces could start with any byte, the header tells them apart
+        assertArrayEquals(phone.binaryList(), watch.sendBLECommand("/notifications"));
+        assertTrue(writes.size() > 1);
+        for (byte[] value : writes) {
+            assertEquals(ResponseMultiplexer.MARKER, value[0] & 0xFF);
+            assertEquals(WatchLink.NO_REQUEST, value[1] & 0xFF);
+        }
+        assertFalse(watch.isMalformedResponse());
+        //and a request id still goes to its own request
+        assertEquals(SONG, watch.sendBLEText("/currentSong"));
+    }
+
+    @Test
+    public void missingCharacteristicDropsResponses() {
+        SimulatedLink simulatedLink = new SimulatedLink(new SimulatedLink.Config());
+        Phone phone = new Phone(simulatedLink, notifications(1));
+
+        phone.link.sendMessage("hello");
+        phone.link.sendNotificationDelta("posted", "k", "d");
+
+        assertEquals(2, phone.dropped);
+        assertFalse(phone.link.canSendDeltas());
+    }
+}
@@ -0,0 +1,345 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The watch end of a {@link SimulatedLink}, a Java port of the receive side of
+ * BLEServer.ino:
+ * <ul>
+ * <li>ccb collects every write on the command characteristic into rawDataField, and the
+ * read that follows completes the response. A compressed response is only expanded on
+ * that read.</li>
+ * <li>notification_update_callback reassembles deltas up to the newline, or by frame length
+ * in binary mode, and hands them to onNotificationEvent as "type;key;data".</li>
+ * <li>sendBLE() notifies a command and waits up to 2 s for the response.
+ * requestBinaryFormat(), requestCompression() and requestMultiplexing() negotiate on top
+ * of it.</li>
+ * <li>Once multiplexing is on sendRequest() sends "#id command" without waiting, ccb hands
+ * every write that starts with the mux marker to the request with its id, and pollResponse()
+ * picks up a response once its last write arrived. sendBLE() becomes a request that is
+ * waited for. Id 0 is the reply to a command sent without one, its last write completes it
+ * instead of the read.</li>
+ * <li>A disconnect falls back to the text format without compression or multiplexing.</li>
+ * </ul>
+ * Byte level decoding reuses PayloadCompressor and WireFormat, whose C++ counterparts
+ * are checked against them separately.
+ */
+public class WatchSimulator implements SimulatedLink.Peripheral {
+    //how long sendBLE waits for a blocking command, and sendBLECommand for its reply
+    public static final long COMMAND_TIMEOUT_MS = 2000;
+    public static final long SHORT_COMMAND_TIMEOUT_MS = 200;
+    //MAX_PENDING_REQUESTS and REQUEST_TIMEOUT_MS
+    public static final int MAX_PENDING_REQUESTS = 4;
+    public static final long REQUEST_TIMEOUT_MS = 5000;
+
+    //PendingRequest
+    private static final class Request {
+        final long sentAt;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        boolean complete = false;
+        long completedAt = -1;
+
+        Request(long sentAt) {
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final SimulatedLink link;
+    private final ByteArrayOutputStream rawDataField = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream notificationDeltaFrame = new ByteArrayOutputStream();
+    private final StringBuilder notificationDelta = new StringBuilder();
+    private final List<String> notificationEvents = new ArrayList<>();
+    private boolean operationInProgress = false;
+    private boolean binaryFormat = false;
+    private boolean compression = false;
+    private boolean multiplexing = false;
+    private final Map<Integer, Request> pendingRequests = new HashMap<>();
+    private int lastRequestId = 0;
+    private boolean malformedResponse = false;
+    private byte[] response;
+    private long commandSentAt;
+    private long lastLatencyMs = -1;
+
+    public WatchSimulator(SimulatedLink link) {
+        this.link = link;
+        link.setPeripheral(this);
+    }
+
+    /**
+     * sendBLE(command, &returnString, true): notifies the command and runs the link until
+     * the completing read arrives. Returns the response bytes, or null on timeout, on
+     * disconnect or if the watch was still waiting on another command.
+     */
+    public byte[] sendBLE(String command) {
+        if (multiplexing) {
+            int id = sendRequest(command);
+            if (id == 0) {
+                return null;
+            }
+            long deadline = link.now() + REQUEST_TIMEOUT_MS;
+            while (link.isConnected() && !isComplete(id) && link.now() <= deadline) {
+                link.runFor(1);
+            }
+            return pollResponse(id);
+        }
+        return sendCommand(command, COMMAND_TIMEOUT_MS);
+    }
+
+    /**
+     * sendBLE(command): notifies the command without a request id even while multiplexing
+     * and waits up to 200 ms for the reply. Returns it, or null like sendBLE.
+     */
+    public byte[] sendBLECommand(String command) {
+        return sendCommand(command, SHORT_COMMAND_TIMEOUT_MS);
+    }
+
+    private byte[] sendCommand(String command, long timeoutMs) {
+        if (!link.isConnected() || operationInProgress) {
+            return null;
+        }
+        operationInProgress = true;
+        rawDataField.reset();
+        response = null;
+        malformedResponse = false;
+        commandSentAt = link.now();
+        if (!link.notifyPhone(WatchUuids.COMMAND_UUID, command.getBytes(StandardCharsets.UTF_8))) {
+            operationInProgress = false;
+            return null;
+        }
+        long deadline = commandSentAt + timeoutMs;
+        while (operationInProgress && link.isConnected() && link.now() < deadline) {
+            link.runFor(1);
+        }
+        operationInProgress = false;
+        return response;
+    }
+
+    public String sendBLEText(String command) {
+        byte[] value = sendBLE(command);
+        return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+
+    //sendBLE(command, callback): only valid once the binary format was negotiated
+    public WireFormat.Frame sendBLEFrame(String command) {
+        if (!binaryFormat) {
+            return null;
+        }
+        byte[] value = sendBLE(command);
+        return value != null ? WireFormat.decode(value) : null;
+    }
+
+    public boolean requestBinaryFormat() {
+        binaryFormat = WireFormat.FORMAT_BINARY.equals(sendBLEText("/format " + WireFormat.FORMAT_BINARY));
+        return binaryFormat;
+    }
+
+    public boolean requestCompression() {
+        compression = PayloadCompressor.NAME.equals(sendBLEText("/compress " + PayloadCompressor.NAME));
+        return compression;
+    }
+
+    public boolean requestMultiplexing() {
+        multiplexing = "on".equals(sendBLEText("/multiplex on"));
+        return multiplexing;
+    }
+
+    /**
+     * sendRequest(command): notifies "#id command" and returns right away with the id, 0 if
+     * the link is down, multiplexing is off or MAX_PENDING_REQUESTS are in flight.
+     */
+    public int sendRequest(String command) {
+        if (!link.isConnected() || !multiplexing || pendingRequests.size() == MAX_PENDING_REQUESTS) {
+            return 0;
+        }
+        do {
+            lastRequestId = lastRequestId == WatchLink.MAX_REQUEST_ID ? 1 : lastRequestId + 1;
+        } while (pendingRequests.containsKey(lastRequestId));
+        int id = lastRequestId;
+        if (!link.notifyPhone(WatchUuids.COMMAND_UUID, ("#" + id + " " + command).getBytes(StandardCharsets.UTF_8))) {
+            return 0;
+        }
+        pendingRequests.put(id, new Request(link.now()));
+        return id;
+    }
+
+    public boolean isComplete(int id) {
+        Request request = pendingRequests.get(id);
+        return request != null && request.complete;
+    }
+
+    //pollResponse: the response once complete (the request is freed), null while pending or if it failed
+    public byte[] pollResponse(int id) {
+        Request request = pendingRequests.get(id);
+        if (request == null) {
+            return null;
+        }
+        if (request.complete) {
+            pendingRequests.remove(id);
+            byte[] data = request.data.toByteArray();
+            if (PayloadCompressor.isCompressed(data)) {
+                try {
+                    data = PayloadCompressor.decompress(data);
+                } catch (IllegalArgumentException e) {
+                    malformedResponse = true;
+                    return null;
+                }
+            }
+            return data;
+        }
+        if (link.now() - request.sentAt > REQUEST_TIMEOUT_MS) {
+            pendingRequests.remove(id);
+        }
+        return null;
+    }
+
+    //runs the link until every pending request is complete, false if that took longer than timeoutMs
+    public boolean awaitRequests(long timeoutMs) {
+        long deadline = link.now() + timeoutMs;
+        while (link.isConnected() && link.now() < deadline) {
+            boolean pending = false;
+            for (Request request : pendingRequests.values()) {
+                pending |= !request.complete;
+            }
+            if (!pending) {
+                return true;
+            }
+            link.runFor(1);
+        }
+        return false;
+    }
+
+    //request to last write of its response, in virtual milliseconds, -1 while it is still arriving
+    public long getRequestLatencyMs(int id) {
+        Request request = pendingRequests.get(id);
+        return request != null && request.complete ? request.completedAt - request.sentAt : -1;
+    }
+
+    //the records onNotificationEvent got so far, in order
+    public List<String> getNotificationEvents() {
+        return notificationEvents;
+    }
+
+    //command to completing read of the last response, in virtual milliseconds
+    public long getLastLatencyMs() {
+        return lastLatencyMs;
+    }
+
+    public boolean isMalformedResponse() {
+        return malformedResponse;
+    }
+
+    public boolean isBinaryFormat() {
+        return binaryFormat;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public boolean isMultiplexing() {
+        return multiplexing;
+    }
+
+    @Override
+    public void onWrite(UUID characteristic, byte[] value) {
+        if (WatchUuids.COMMAND_UUID.equals(characteristic)) {
+            //a piece of a multiplexed response, everything else is the one classic response in flight
+            if (multiplexing && isMuxFrame(value)) {
+                if (addResponseChunk(value)) {
+                    return;
+                }
+                rawDataField.write(value, ResponseMultiplexer.HEADER_SIZE, value.length - ResponseMultiplexer.HEADER_SIZE);
+                if ((value[2] & ResponseMultiplexer.FLAG_LAST) != 0) {
+                    onRead(characteristic);
+                }
+                return;
+            }
+            rawDataField.write(value, 0, value.length);
+        } else if (WatchUuids.NOTIFICATION_UPDATE_UUID.equals(characteristic)) {
+            onNotificationUpdate(value);
+        }
+    }
+
+    @Override
+    public void onRead(UUID characteristic) {
+        if (!WatchUuids.COMMAND_UUID.equals(characteristic)) {
+            return;
+        }
+        byte[] data = rawDataField.toByteArray();
+        if (PayloadCompressor.isCompressed(data)) {
+            try {
+                data = PayloadCompressor.decompress(data);
+            } catch (IllegalArgumentException e) {
+                malformedResponse = true;
+            }
+        }
+        response = data;
+        lastLatencyMs = link.now() - commandSentAt;
+        operationInProgress = false;
+    }
+
+    @Override
+    public void onDisconnected() {
+        binaryFormat = false;
+        compression = false;
+        multiplexing = false;
+        pendingRequests.clear();
+        operationInProgress = false;
+    }
+
+    private static boolean isMuxFrame(byte[] value) {
+        return value.length >= ResponseMultiplexer.HEADER_SIZE && (value[0] & 0xFF) == ResponseMultiplexer.MARKER;
+    }
+
+    //false for id 0, a piece for a request that is gone is dropped
+    private boolean addResponseChunk(byte[] value) {
+        int id = value[1] & 0xFF;
+        if (id == WatchLink.NO_REQUEST) {
+            return false;
+        }
+        Request request = pendingRequests.get(id);
+        if (request == null || request.complete) {
+            return true;
+        }
+        request.data.write(value, ResponseMultiplexer.HEADER_SIZE, value.length - ResponseMultiplexer.HEADER_SIZE);
+        if ((value[2] & ResponseMultiplexer.FLAG_LAST) != 0) {
+            request.complete = true;
+            request.completedAt = link.now();
+        }
+        return true;
+    }
+
+    private void onNotificationUpdate(byte[] value) {
+        if (binaryFormat) {
+            notificationDeltaFrame.write(value, 0, value.length);
+            byte[] buffer = notificationDeltaFrame.toByteArray();
+            int offset = 0;
+            int length;
+            while ((length = WireFormat.frameLength(buffer, offset, buffer.length - offset)) > 0
+                    && length <= buffer.length - offset) {
+                try {
+                    String[] fields = WireFormat.decode(buffer, offset, length).records.get(0);
+                    notificationEvents.add(fields[0] + ";" + fields[1] + ";" + fields[2]);
+                } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                    malformedResponse = true;
+                }
+                offset += length;
+            }
+            notificationDeltaFrame.reset();
+            notificationDeltaFrame.write(buffer, offset, buffer.length - offset);
+            return;
+        }
+        notificationDelta.append(new String(value, StandardCharsets.UTF_8));
+        int end;
+        while ((end = notificationDelta.indexOf("\n")) >= 0) {
+            notificationEvents.add(notificationDelta.substring(0, end));
+            notificationDelta.delete(0, end + 1);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Keeps the app's UUIDs in step with the firmware by reading the defines out of BLEServer.ino.
+ */
+public class WatchUuidsTest {
+
+    private static Map<String, String> firmwareDefines() throws IOException {
+        File dir = new File("").getAbsoluteFile();
+        File ino = null;
+        while (dir != null && ino == null) {
+            File candidate = new File(dir, "ESP32_BLE_Example_Code_V2/BLEServer.ino");
+            ino = candidate.isFile() ? candidate : null;
+            dir = dir.getParentFile();
+        }
+        assertNotNull("BLEServer.ino not found above the working directory", ino);
+        Map<String, String> defines = new HashMap<>();
+        Matcher m = Pattern.compile("#define\\s+(\\w+)\\s+\"([0-9a-fA-F-]{36})\"")
+                .matcher(new String(Files.readAllBytes(ino.toPath()), StandardCharsets.UTF_8));
+        while (m.find()) {
+            defines.put(m.group(1), m.group(2).toLowerCase());
+        }
+        return defines;
+    }
+
+    @Test
+    public void matchesFirmware() throws IOException {
+        Map<String, String> defines = firmwareDefines();
+        assertEquals(defines.get("SERVICE_UUID"), WatchUuids.SERVICE);
+        assertEquals(defines.get("COMMAND_UUID"), WatchUuids.COMMAND);
+        assertEquals(defines.get("CHARACTERISTIC_NOTIFICATION_UPDATE"), WatchUuids.NOTIFICATION_UPDATE);
+    }
+
+    @Test
+    public void parsedConstantsMatchStrings() {
+        assertEquals(WatchUuids.SERVICE, WatchUuids.SERVICE_UUID.toString());
+        assertEquals(WatchUuids.COMMAND, WatchUuids.COMMAND_UUID.toString());
+        assertEquals(WatchUuids.NOTIFICATION_UPDATE, WatchUuids.NOTIFICATION_UPDATE_UUID.toString());
+    }
+}
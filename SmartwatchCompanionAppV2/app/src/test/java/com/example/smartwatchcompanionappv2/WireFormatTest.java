@@ -0,0 +1,93 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class WireFormatTest {
+
+    @Test
+    public void roundTrip_withCrc() {
+        byte[] frame = new WireFormat.Encoder(WireFormat.TYPE_NOTIFICATION_LIST, true)
+                .record("Messages", "Alice", "See you at 5; bring\nsnacks", "", "", "", "")
+                .record("Gmail", "Bob", "", "", "", "", "body")
+                .finish();
+
+        assertEquals(frame.length, WireFormat.frameLength(frame, 0, frame.length));
+        WireFormat.Frame decoded = WireFormat.decode(frame);
+        assertEquals(WireFormat.VERSION, decoded.version);
+        assertEquals(WireFormat.TYPE_NOTIFICATION_LIST, decoded.type);
+        assertEquals(2, decoded.records.size());
+        assertArrayEquals(new String[]{"Messages", "Alice", "See you at 5; bring\nsnacks", "", "", "", ""}, decoded.records.get(0));
+        assertEquals("body", decoded.records.get(1)[6]);
+    }
+
+    @Test
+    public void roundTrip_emptyAndLargeFields() {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            big.append('x');
+        }
+        byte[] frame = new WireFormat.Encoder(WireFormat.TYPE_CALENDAR, false)
+                .record(big.toString(), "caf\u00e9")
+                .finish();
+        WireFormat.Frame decoded = WireFormat.decode(frame);
+        assertEquals(big.toString(), decoded.records.get(0)[0]);
+        assertEquals("caf\u00e9", decoded.records.get(0)[1]);
+
+        WireFormat.Frame empty = WireFormat.decode(new WireFormat.Encoder(WireFormat.TYPE_TEXT, true).finish());
+        assertTrue(empty.records.isEmpty());
+    }
+
+    @Test
+    public void frameLength_needsCompleteHeader() {
+        byte[] frame = new WireFormat.Encoder(WireFormat.TYPE_TEXT, false).record("hello").finish();
+        assertEquals(-1, WireFormat.frameLength(frame, 0, 2));
+        assertEquals(frame.length, WireFormat.frameLength(frame, 0, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void corruptedFrame_failsCrc() {
+        byte[] frame = new WireFormat.Encoder(WireFormat.TYPE_TEXT, true).record("hello").finish();
+        frame[frame.length - 3] ^= 0x01;
+        WireFormat.decode(frame);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedFrame_rejected() {
+        byte[] frame = new WireFormat.Encoder(WireFormat.TYPE_TEXT, false).record("hello").finish();
+        WireFormat.decode(frame, 0, frame.length - 1);
+    }
+
+    @Test
+    public void oversizedCounts_rejected() {
+        byte[][] frames = {
+                //field count of 2^32 - 1
+                {0x01, 0x00, 0x00, 0x06, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07},
+                //field length of 2^35 - 1
+                {0x01, 0x00, 0x00, 0x07, 0x01, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F},
+                //record count of 2^31
+                {0x01, 0x00, 0x00, 0x05, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08},
+                //body length of 2^32 + 5
+                {0x01, 0x00, 0x00, (byte) 0x85, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 0x00},
+        };
+        for (byte[] frame : frames) {
+            try {
+                WireFormat.decode(frame);
+                fail("decoded " + Arrays.toString(frame));
+            } catch (IllegalArgumentException expected) {
+                //rejected as malformed instead of failing an allocation or a copy
+            }
+        }
+    }
+
+    @Test
+    public void crc16_matchesCheckValue() {
+        //standard check value for CRC-16/CCITT-FALSE
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0x29B1, WireFormat.crc16(check, 0, check.length));
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The row formatting CalendarReader does for every event instance of a query, from raw
+ * columns to the text records and to a binary frame. A new CalendarRowMapper per operation
+ * matches the one mapper per query the app uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CalendarFormatBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int events;
+
+    private Object[][] rows;
+    private ZoneId zone;
+
+    @Setup
+    public void setup() {
+        rows = SyntheticData.events(events, 7);
+        zone = ZoneId.of("America/New_York");
+    }
+
+    @Benchmark
+    public String textRecords() {
+        StringBuilder sb = new StringBuilder();
+        CalendarRowMapper mapper = new CalendarRowMapper(zone);
+        for (Object[] row : rows) {
+            mapper.map((Long) row[0], (Long) row[1], (String) row[2], (String) row[3], (String) row[4], (String) row[5],
+                    (String) row[6], (key, startDate, title, description, startTime, endTime, location) ->
+                            CalendarRowMapper.appendRecord(sb, title, description, startDate, startTime, endTime, location));
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public byte[] binaryRecords() {
+        WireFormat.Encoder frame = new WireFormat.Encoder(WireFormat.TYPE_CALENDAR, true);
+        CalendarRowMapper mapper = new CalendarRowMapper(zone);
+        for (Object[] row : rows) {
+            mapper.map((Long) row[0], (Long) row[1], (String) row[2], (String) row[3], (String) row[4], (String) row[5],
+                    (String) row[6], (key, startDate, title, description, startTime, endTime, location) ->
+                            frame.record(title, description, startDate, startTime, endTime, location));
+        }
+        return frame.finish();
+    }
+}
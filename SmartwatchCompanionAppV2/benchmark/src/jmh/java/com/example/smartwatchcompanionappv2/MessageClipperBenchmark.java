@@ -0,0 +1,83 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunking a notification list response at the default, a typical and the largest MTU
+ * the way the app sends it. Every write is queued and has to own its value, so the
+ * acknowledged and streamed paths (WatchLink, StreamingTransfer) copy each chunk out with
+ * getNextBytes, and ResponseMultiplexer copies the nextChunk view in behind its header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageClipperBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int notifications;
+
+    @Param({"23", "185", "517"})
+    public int mtu;
+
+    private String message;
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        NotificationEncoder encoder = new NotificationEncoder();
+        StringBuilder list = new StringBuilder();
+        for (String[] n : SyntheticData.notifications(notifications, 42)) {
+            list.append(encoder.encode(n[0], n[1], n[2], n[3], n[4], n[5], n[6], n[7])).append('\n');
+        }
+        message = list.toString();
+        payload = message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //acknowledged and streamed text responses
+    @Benchmark
+    public void textChunkCopies(Blackhole bh) {
+        MessageClipper clipper = MessageClipper.forMtu(message, mtu);
+        while (!clipper.messageComplete()) {
+            bh.consume(clipper.getNextBytes());
+        }
+        clipper.release();
+    }
+
+    //binary frames, same path
+    @Benchmark
+    public void binaryChunkCopies(Blackhole bh) {
+        MessageClipper clipper = MessageClipper.forMtu(payload, mtu);
+        while (!clipper.messageComplete()) {
+            bh.consume(clipper.getNextBytes());
+        }
+        clipper.release();
+    }
+
+    //multiplexed responses, the view is copied in after the marker, request id and flags
+    @Benchmark
+    public void multiplexedTextChunks(Blackhole bh) {
+        MessageClipper clipper = new MessageClipper(message,
+                MessageClipper.chunkSizeForMtu(mtu) - ResponseMultiplexer.HEADER_SIZE);
+        while (!clipper.messageComplete()) {
+            ByteBuffer piece = clipper.nextChunk();
+            byte[] value = new byte[ResponseMultiplexer.HEADER_SIZE + piece.remaining()];
+            value[0] = (byte) ResponseMultiplexer.MARKER;
+            value[1] = 1;
+            piece.get(value, ResponseMultiplexer.HEADER_SIZE, piece.remaining());
+            bh.consume(value);
+        }
+        clipper.release();
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.smartwatchcompanionappv2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-notification string building NLService does for a "/notifications" request, once
+ * for the text list and once for the binary frame, plus shortenString on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NotificationEncoderBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int notifications;
+
+    private String[][] data;
+    private NotificationEncoder encoder;
+
+    @Setup
+    public void setup() {
+        data = SyntheticData.notifications(notifications, 42);
+        encoder = new NotificationEncoder();
+    }
+
+    @Benchmark
+    public String textList() {
+        StringBuilder list = new StringBuilder();
+        for (String[] n : data) {
+            list.append(encoder.encode(n[0], n[1], n[2], n[3], n[4], n[5], n[6], n[7])).append('\n');
+        }
+        return list.toString();
+    }
+
+    @Benchmark
+    public byte[] binaryList() {
+        WireFormat.Encoder frame = new WireFormat.Encoder(WireFormat.TYPE_NOTIFICATION_LIST, true);
+        for (String[] n : data) {
+            frame.record(encoder.encodeFields(n[0], n[1], n[2], n[3], n[4], n[5], n[6], n[7]));
+        }
+        return frame.finish();
+    }
+
+    @Benchmark
+    public void shortenString(Blackhole bh) {
+        for (String[] n : data) {
+            bh.consume(NotificationEncoder.shortenString(n[6] != null ? n[6] : n[2]));
+        }
+    }
+}
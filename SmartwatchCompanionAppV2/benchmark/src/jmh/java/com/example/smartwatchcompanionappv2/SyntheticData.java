@@ -0,0 +1,70 @@
+package com.example.smartwatchcompanionappv2;
+
+import java.util.Random;
+
+/**
+ * Seeded notification and calendar data shaped like what NLService and CalendarReader see
+ * on a phone: a handful of apps, short titles, message bodies with the odd ';', newline or
+ * non ASCII character, and long email bodies that get cut by shortenString.
+ */
+final class SyntheticData {
+    private static final String[] APPS = {"Messages", "Gmail", "WhatsApp", "Calendar", "Spotify", "Slack", "Phone"};
+    private static final String[] WORDS = {"meeting", "lunch", "tomorrow", "build", "review", "caf\u00e9",
+            "na\u00efve", "update", "shipping", "call", "ok;", "see\nyou", "\u2764", "at", "the", "office"};
+
+    //one notification as the fields NLService extracts: appName, title, text, infoText, subText, bigTitle, bigText, messages
+    static String[][] notifications(int count, long seed) {
+        Random random = new Random(seed);
+        String[][] notifications = new String[count][];
+        for (int i = 0; i < count; i++) {
+            String app = APPS[random.nextInt(APPS.length)];
+            boolean email = app.equals("Gmail");
+            boolean message = app.equals("Messages") || app.equals("WhatsApp");
+            notifications[i] = new String[]{
+                    app,
+                    sentence(random, 2, 6),
+                    sentence(random, 4, 20),
+                    random.nextInt(4) == 0 ? sentence(random, 1, 3) : null,
+                    random.nextInt(3) == 0 ? sentence(random, 1, 4) : null,
+                    random.nextInt(2) == 0 ? sentence(random, 2, 6) : null,
+                    email ? sentence(random, 30, 120) : null,
+                    message ? sentence(random, 5, 40) : null};
+        }
+        return notifications;
+    }
+
+    //one event instance as the raw columns CalendarReader reads: eventId, begin, title, description, dtStart, end, location
+    static Object[][] events(int count, long seed) {
+        Random random = new Random(seed);
+        long day = 1767225600000L;
+        Object[][] events = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            long begin = day + (i / 8) * 86400000L + random.nextInt(48) * 1800000L;
+            long end = begin + (1 + random.nextInt(6)) * 1800000L;
+            events[i] = new Object[]{
+                    (long) random.nextInt(100000),
+                    begin,
+                    sentence(random, 1, 5),
+                    random.nextInt(3) == 0 ? null : sentence(random, 0, 25),
+                    Long.toString(begin),
+                    random.nextInt(50) == 0 ? null : Long.toString(end),
+                    random.nextInt(2) == 0 ? null : sentence(random, 1, 4)};
+        }
+        return events;
+    }
+
+    private static String sentence(Random random, int minWords, int maxWords) {
+        int words = minWords + random.nextInt(maxWords - minWords + 1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private SyntheticData() {
+    }
+}